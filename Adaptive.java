@@ -0,0 +1,262 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Adaptive coding of streams whose length is not known in advance, so
+	that input can be piped through in one pass and constant memory.  Input
+	is cut into segments and each segment is coded with canonical codes
+	built from the counts of the segments before it.  The decoder counts
+	what it decodes and rebuilds the same codes, so no code table is sent.
+	Counts are biased as buildTree does, drawing from a generator both ends
+	seed alike.  The seed is the only secret and is hidden by the keystream
+	of the key.  Segments start small so the model adapts quickly and grow
+	to a fixed size, and older counts are halved as new ones are added.
+
+	Stream after the header
+		seed long, hidden by keystream
+		segment for each full run of input
+			original length int
+			encrypted length int
+			codes
+		last segment, shorter than a full one and possibly empty
+		crc of whole stream int
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import bitfuns.*;
+
+class Adaptive
+{
+	private static final long agelimit = 1L<<24;  // total count past which counts are halved
+
+	private byte charwidth;
+	private long frequency[];  // counts of segments coded so far
+	private long total;  // sum of counts
+	private Random bias;  // seeded alike at both ends
+	private int segment;  // bytes in next full segment
+	private int maxsegment;  // bytes in largest segment
+	private int lens[];
+	private long codes[];
+	private TableDecoder decoder;  // built from lens when first needed
+
+	/* Constructor starts with equal counts */
+
+	protected Adaptive(byte charwidth, long seed) {
+		this.charwidth = charwidth;
+		frequency = new long[1<<charwidth];
+		bias = new Random(seed);
+
+		// segments hold whole groups of eight symbols and wide alphabets get longer ones
+		segment = (1 << Math.max(12,charwidth))/8*charwidth;
+		maxsegment = (1 << Math.max(20,charwidth+6))/8*charwidth;
+		rebuild();
+	}
+
+	/* Accessors */
+
+	protected int getSegment() {
+		return segment;
+	}
+
+	protected int getMaxSegment() {
+		return maxsegment;
+	}
+
+	protected int[] getLens() {
+		return lens;
+	}
+
+	protected long[] getCodes() {
+		return codes;
+	}
+
+	protected TableDecoder getDecoder() {
+		if (decoder == null)
+			decoder = new TableDecoder(Canonical.tree(lens),charwidth);
+		return decoder;
+	}
+
+	/* draws new codes from the counts */
+
+	private void rebuild() {
+		lens = Canonical.lengths(Puffman.bias(frequency,bias),Canonical.maxlength);
+		codes = Canonical.codes(lens);
+		decoder = null;
+	}
+
+	/*
+		Adds the counts of a full segment and rebuilds the codes for the next
+
+		ByteBuffer plain - segment just coded
+	*/
+	protected void update(ByteBuffer plain) {
+		Histogram.count(plain.duplicate(),charwidth,frequency);
+		total += (long)plain.remaining()*8/charwidth;
+
+		// halving keeps the model following changes in the input
+		if (total > agelimit) {
+			total = 0;
+			for (int i=0; i < frequency.length; i++)
+				total += (frequency[i] >>>= 1);
+		}
+		segment = Math.min(2*segment,maxsegment);
+		rebuild();
+	}
+
+	/*
+		Encrypts a channel of any length
+
+		ReadableByteChannel in - plain channel read to its end
+		WritableByteChannel out - receives encrypted stream
+		byte kdat[] - key data
+		byte charwidth - symbol width in bits
+
+		return number of plain bytes encrypted
+	*/
+	protected static long encode(ReadableByteChannel in, WritableByteChannel out, byte kdat[], byte charwidth) throws IOException {
+		long seed = new Random().nextLong(), size = 0;
+		Adaptive model = new Adaptive(charwidth,seed);
+		ByteBuffer plain = ByteBuffer.allocate(model.getMaxSegment()), scratch = ByteBuffer.allocate(Puffman.outbufsize), frame = ByteBuffer.allocate(8);
+		ByteArrayOutputStream cipher = new ByteArrayOutputStream();
+		WritableByteChannel cipherchannel = Channels.newChannel(cipher);
+		CRC32 crc = new CRC32();
+		Metrics.Span span;
+		boolean last;
+
+		write(out,new Header(charwidth).toBuffer());
+		frame.putLong(seed);
+		new Keystream(kdat).apply(frame.array(),0,8);
+		frame.flip();
+		write(out,frame);
+
+		do {
+			// reads a whole segment unless input ends first
+			plain.clear();
+			plain.limit(model.getSegment());
+			span = Metrics.begin(Metrics.map);
+			while (plain.hasRemaining() && (in.read(plain) >= 0))
+				;
+			plain.flip();
+			span.end(plain.remaining(),0,0,1);
+			last = plain.remaining() < model.getSegment();
+
+			cipher.reset();
+			Puffman.encodeBuffer(new byte[0],new Window(plain.duplicate()),plain.remaining(),cipherchannel,new BitSet(),0,model.getCodes(),model.getLens(),scratch,null,charwidth,false);
+			frame.clear();
+			frame.putInt(plain.remaining());
+			frame.putInt(cipher.size());
+			frame.flip();
+			write(out,frame);
+			span = Metrics.begin(Metrics.write);
+			write(out,ByteBuffer.wrap(cipher.toByteArray()));
+			span.end(0,cipher.size(),0,1);
+
+			crc.update(plain.duplicate());
+			size += plain.remaining();
+			if (!last)
+				model.update(plain);
+		} while (!last);
+
+		frame.clear();
+		frame.putInt((int)crc.getValue());
+		frame.flip();
+		write(out,frame);
+		return size;
+	}
+
+	/*
+		Decrypts a stream following its header
+
+		ChannelSource source - encrypted input positioned after the header
+		WritableByteChannel out - receives plain stream
+		byte kdat[] - key data
+		byte charwidth - symbol width in bits
+		ByteBuffer slice - buffer output is written through
+
+		return number of plain bytes written
+	*/
+	protected static long decode(ChannelSource source, WritableByteChannel out, byte kdat[], byte charwidth, ByteBuffer slice) throws IOException {
+		ByteBuffer frame = ByteBuffer.allocate(8);
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		WritableByteChannel plainchannel = Channels.newChannel(plain);
+		CRC32 crc = new CRC32();
+		Adaptive model;
+		ByteBuffer segment;
+		long size = 0;
+		int length, codelength;
+		boolean last;
+
+		read(source,frame);
+		new Keystream(kdat).apply(frame.array(),0,8);
+		model = new Adaptive(charwidth,frame.getLong());
+
+		do {
+			read(source,frame);
+			length = frame.getInt();
+			codelength = frame.getInt();
+			if ((length < 0) || (length > model.getSegment()) || (codelength < 0))
+				throw new IOException("Stream is damaged");
+
+			// decodes segment into memory where it can be counted
+			plain.reset();
+			source.region(codelength);
+			model.getDecoder().decode(ByteBuffer.allocate(0),source,new OutputSink(plainchannel,slice),0,length,null);
+			source.region(ChannelSource.unbounded);
+			segment = ByteBuffer.wrap(plain.toByteArray());
+			if (segment.remaining() != length)
+				throw new EOFException("Stream ends early");
+
+			write(out,segment.duplicate());
+			crc.update(segment.duplicate());
+			size += length;
+			last = length < model.getSegment();
+			if (!last)
+				model.update(segment);
+		} while (!last);
+
+		frame = ByteBuffer.allocate(4);
+		read(source,frame);
+		if (frame.getInt() != (int)crc.getValue())
+			throw new IOException("CRC mismatch - confirm encryption key");
+		return size;
+	}
+
+	/* writes a whole buffer */
+
+	private static void write(WritableByteChannel out, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining())
+			out.write(buf);
+	}
+
+	/* reads a whole frame */
+
+	private static void read(ChannelSource source, ByteBuffer frame) throws IOException {
+		frame.clear();
+		if (source.get(frame.array()) < frame.capacity())
+			throw new EOFException("Stream ends early");
+	}
+}
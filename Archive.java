@@ -0,0 +1,292 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Archive of many files sharing one model.  The combined frequency of all
+	members builds a single tree whose code table is written once after the
+	archive header and encrypted against the key.  Each member is then coded
+	from a byte boundary so that any one of them can be found through the
+	index at the end of the archive and decoded without the others.
+
+	Archive header
+		"PUFA" signature
+		charwidth byte
+		index position long
+		index crc int
+		member count int
+	code table
+	members
+	index entry for each member
+		name string
+		position long
+		encrypted length long
+		original length long
+		original crc int
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import bitfuns.*;
+
+class Archive
+{
+	private static final String signature = "PUFA";
+	private static final int headsize = 4+1+8+4+4;  // bytes in archive header
+
+	private FileChannel file;
+	private byte charwidth;
+	private Node tree;  // shared tree or null until key is given
+	private ArrayList<Member> members = new ArrayList<Member>();
+
+	/* One member of the archive and where its codes are kept */
+
+	protected static class Member
+	{
+		private String name;
+		private long position;  // position in archive of first code
+		private long length;  // bytes of codes
+		private long size;  // original length
+		private int crc;  // original crc
+
+		protected String getName() {
+			return name;
+		}
+
+		protected long getSize() {
+			return size;
+		}
+	}
+
+	/* Constructor reads the header and index of an existing archive */
+
+	protected Archive(FileChannel file) throws IOException {
+		ByteBuffer head = ByteBuffer.allocate(headsize), index;
+		byte sig[] = new byte[signature.length()];
+		DataInputStream in;
+		CRC32 crc = new CRC32();
+		long indexpos;
+		int indexcrc, count;
+		Member member;
+
+		this.file = file;
+		read(head,0);
+		head.get(sig);
+		if (!new String(sig).equals(signature))
+			throw new IOException("Not an archive");
+		charwidth = head.get();
+		indexpos = head.getLong();
+		indexcrc = head.getInt();
+		count = head.getInt();
+
+		// index runs from its position to the end of the archive
+		if ((indexpos < headsize) || (indexpos > file.size()) || (file.size()-indexpos > Integer.MAX_VALUE))
+			throw new IOException("Archive index is damaged");
+		index = ByteBuffer.allocate((int)(file.size()-indexpos));
+		read(index,indexpos);
+		crc.update(index.array());
+		if ((int)crc.getValue() != indexcrc)
+			throw new IOException("Archive index is damaged");
+		in = new DataInputStream(new ByteArrayInputStream(index.array()));
+		for (int i=0; i < count; i++) {
+			member = new Member();
+			member.name = in.readUTF();
+			member.position = in.readLong();
+			member.length = in.readLong();
+			member.size = in.readLong();
+			member.crc = in.readInt();
+			members.add(member);
+		}
+	}
+
+	/* Accessors */
+
+	protected List<Member> getMembers() {
+		return members;
+	}
+
+	/* reads buffer whole from the given position */
+
+	private void read(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining())
+			if (file.read(buf,position+buf.position()) < 0)
+				throw new EOFException();
+		buf.flip();
+	}
+
+	/*
+		Decrypts the shared code table and rebuilds its tree
+
+		byte kdat[] - key data
+	*/
+	protected void unlock(byte kdat[]) throws IOException {
+		ByteBuffer table = ByteBuffer.allocate((Node.tableBits(charwidth)+7)/8);
+
+		read(table,headsize);
+		tree = Depuff.readTree(table.array(),kdat,charwidth,null);
+	}
+
+	/*
+		Decodes one member into a channel
+
+		Member member - member to decode
+		TableDecoder decoder - decoder of shared tree
+		WritableByteChannel out - receives member
+		ByteBuffer slice - reusable buffer output is written through
+
+		return whether crc matches
+	*/
+	private boolean extract(Member member, TableDecoder decoder, WritableByteChannel out, ByteBuffer slice) throws IOException {
+		Window codes = new Window(file,FileChannel.MapMode.READ_ONLY,member.position,member.position+member.length,Window.defaultsize);
+
+		return decoder.decode(ByteBuffer.allocate(0),codes,new OutputSink(out,slice),0,member.size,null) == member.crc;
+	}
+
+	/*
+		Writes members to files of their names, every member when none are named
+
+		List<String> names - names of members to extract
+		byte kdat[] - key data
+
+		return number of members that failed
+	*/
+	protected int extract(List<String> names, byte kdat[]) throws IOException {
+		ByteBuffer slice = ByteBuffer.allocateDirect(OutputSink.defaultslice);
+		HashSet<String> wanted = new HashSet<String>(names);
+		TableDecoder decoder;
+		FileChannel out;
+		File dest;
+		int failed = 0;
+
+		unlock(kdat);
+		decoder = new TableDecoder(tree,charwidth);
+		for (Member member : members) {
+			if (!names.isEmpty() && !wanted.remove(member.name))
+				continue;
+			if (!safe(member.name)) {
+				System.err.println("Failed "+member.name+": name leads outside current directory");
+				failed++;
+				continue;
+			}
+			dest = new File(member.name);
+			if (dest.getParentFile() != null)
+				dest.getParentFile().mkdirs();
+			out = new FileOutputStream(dest).getChannel();
+			try {
+				if (!extract(member,decoder,out,slice)) {
+					System.err.println("Failed "+member.name+": CRC mismatch - confirm encryption key");
+					failed++;
+				}
+			} finally {
+				out.close();
+			}
+		}
+		for (String name : wanted) {
+			System.err.println("Failed "+name+": not in archive");
+			failed++;
+		}
+		return failed;
+	}
+
+	/* whether a name stays below the current directory */
+
+	protected static boolean safe(String name) {
+		File f = new File(name);
+
+		if (f.isAbsolute() || (name.length() == 0))
+			return false;
+		for (; f != null; f = f.getParentFile())
+			if (f.getName().equals(".."))
+				return false;
+		return true;
+	}
+
+	/*
+		Creates an archive from files, counting them all before any is coded
+
+		String archive - name of archive file
+		List<String> names - files to add
+		byte kdat[] - key data
+		byte charwidth - symbol width in bits
+	*/
+	protected static void create(String archive, List<String> names, byte kdat[], byte charwidth) throws IOException {
+		ByteArrayOutputStream index = new ByteArrayOutputStream();
+		DataOutputStream entries = new DataOutputStream(index);
+		ByteBuffer head = ByteBuffer.allocate(headsize), scratch = ByteBuffer.allocate(Puffman.outbufsize);
+		long codes[], size, position;
+		int tablen[] = new int[2], lens[], crc;
+		byte table[];
+		FileChannel in, out;
+		CRC32 indexcrc = new CRC32();
+
+		for (String name : names)
+			if (!safe(name))
+				throw new IOException(name+" must be a relative path below the current directory");
+
+		// combined histogram of every member
+		lens = Canonical.lengths(Puffman.bias(Histogram.count(names,charwidth)),Canonical.maxlength);
+		codes = Canonical.codes(lens);
+
+		// shared code table encrypted against the key
+		table = Bitfun.toByteArray(Puffman.codeTable(Canonical.tree(lens),tablen,charwidth),new byte[(Node.tableBits(charwidth)+7)/8]);
+		for (int i=0; i < Math.min(kdat.length,table.length); i++)
+			table[i] ^= kdat[i];
+
+		out = new FileOutputStream(archive).getChannel();
+		try {
+			out.position(headsize);
+			out.write(ByteBuffer.wrap(table));
+
+			// each member starts on a byte boundary with no table of its own
+			for (String name : names) {
+				in = new FileInputStream(name).getChannel();
+				try {
+					size = in.size();
+					position = out.position();
+					crc = Puffman.encodeBuffer(new byte[0],new Window(in,FileChannel.MapMode.READ_ONLY,0,size,Window.defaultsize),size,out,new BitSet(),0,codes,lens,scratch,null,charwidth);
+				} finally {
+					in.close();
+				}
+				entries.writeUTF(name);
+				entries.writeLong(position);
+				entries.writeLong(out.position()-position);
+				entries.writeLong(size);
+				entries.writeInt(crc);
+			}
+
+			// index follows the members and the header points to it
+			indexcrc.update(index.toByteArray());
+			head.put(signature.getBytes());
+			head.put(charwidth);
+			head.putLong(out.position());
+			head.putInt((int)indexcrc.getValue());
+			head.putInt(names.size());
+			head.flip();
+			out.write(ByteBuffer.wrap(index.toByteArray()));
+			out.write(head,0);
+		} finally {
+			out.close();
+		}
+	}
+}
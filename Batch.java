@@ -0,0 +1,141 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Runs one program over many files in a single JVM.  Files are named one
+	per line in a list file or found by walking a directory tree, and are
+	handed to a fixed pool of worker threads as they are found.  No more
+	files are open at once than there are workers, as each waits for a free
+	worker before the next is handed out.  Failures are collected rather
+	than stopping the batch.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+abstract class Batch
+{
+	private ExecutorService workers;
+	private Semaphore free;  // workers not processing a file
+	private List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+	private int count;  // files handed out
+
+	/* Constructor */
+
+	protected Batch(int threads) {
+		workers = Executors.newFixedThreadPool(Math.max(1,threads));
+		free = new Semaphore(Math.max(1,threads));
+	}
+
+	/* whether a file found in a directory should be processed */
+
+	protected abstract boolean accept(String file);
+
+	/* processes one file, removing any partial output if it fails */
+
+	protected abstract void process(String file) throws IOException;
+
+	/*
+		Processes every file named in a list or found under a directory then
+		waits for all of them to finish
+
+		String path - list file or directory
+	*/
+	protected void run(String path) throws IOException {
+		BufferedReader list;
+		String line;
+
+		try {
+			if (new File(path).isDirectory()) {
+				Files.walkFileTree(Paths.get(path),new SimpleFileVisitor<Path>() {
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						if (attrs.isRegularFile() && accept(file.toString()))
+							submit(file.toString());
+						return FileVisitResult.CONTINUE;
+					}
+
+					public FileVisitResult visitFileFailed(Path file, IOException e) {
+						count++;
+						failures.add(file+": "+e);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} else {
+				list = new BufferedReader(new FileReader(path));
+				try {
+					while ((line = list.readLine()) != null)
+						if (line.trim().length() > 0)
+							submit(line.trim());
+				} finally {
+					list.close();
+				}
+			}
+		} finally {
+			workers.shutdown();
+		}
+		try {
+			workers.awaitTermination(Long.MAX_VALUE,TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	/* hands a file to the next free worker, waiting for one if all are busy */
+
+	private void submit(final String file) throws IOException {
+		try {
+			free.acquire();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		count++;
+		workers.execute(new Runnable() {
+			public void run() {
+				try {
+					process(file);
+				} catch (Throwable e) {
+					failures.add(file+": "+((e.getMessage() != null) ? e.getMessage() : e.toString()));
+				} finally {
+					free.release();
+				}
+			}
+		});
+	}
+
+	/*
+		Prints each failure followed by the totals
+
+		String verb - what was done to each file
+
+		return number of files that failed
+	*/
+	protected int report(String verb) {
+		synchronized (failures) {
+			for (String failure : failures)
+				System.err.println("Failed "+failure);
+		}
+		System.out.println(verb+" "+(count-failures.size())+" of "+count+" files, "+failures.size()+" failed");
+		return failures.size();
+	}
+}
@@ -0,0 +1,91 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Memory budget shared by the encoder and decoder.  Chunk sizes and the
+	number of buffers held at once are derived from a fixed number of bytes
+	so that peak memory does not depend on the size of the input or on how
+	much happens to be free when a chunk is allocated.
+ */
+
+class Budget
+{
+	protected static final long defaultsize = 1L<<28;  // bytes used unless configured
+
+	private long bytes;  // bytes that may be held at once
+
+	/* Constructors */
+
+	protected Budget(long bytes) {
+		if (bytes <= 0)
+			throw new IllegalArgumentException("Memory budget must be positive");
+		this.bytes = bytes;
+	}
+
+	// default budget never exceeds half of the maximum heap
+	protected Budget() {
+		this(Math.min(defaultsize,Runtime.getRuntime().maxMemory()/2));
+	}
+
+	/* Accessors */
+
+	protected long getBytes() {
+		return bytes;
+	}
+
+	/*
+		Size of a chunk worked on at once
+
+		int ratio - bytes of memory used per byte of chunk
+		int multiple - chunk size is rounded down to a multiple of this
+
+		return chunk size in bytes
+	*/
+	protected int chunk(int ratio, int multiple) {
+		long size = Math.min(bytes/ratio,Integer.MAX_VALUE-(1<<16));
+
+		size -= size%multiple;
+		return (int)Math.max(size,multiple);
+	}
+
+	/*
+		Number of buffers that may be held at once
+
+		long itemsize - bytes per buffer
+		int most - number of buffers that would be useful
+
+		return number of buffers, at least one
+	*/
+	protected int slots(long itemsize, int most) {
+		return (int)Math.max(1,Math.min(most,bytes/Math.max(1,itemsize)));
+	}
+
+	/*
+		Whether a buffer of the given size fits in the budget
+
+		long size - size of buffer in bytes
+
+		return true if it fits
+	*/
+	protected boolean fits(long size) {
+		return size <= bytes;
+	}
+}
@@ -0,0 +1,361 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Huffman code construction on primitive arrays.  Code lengths come from a
+	two-queue merge over sorted weights and codes are assigned canonically
+	from the lengths alone.  The Node tree needed for the code table is
+	derived from the lengths afterwards.  Lengths may be capped so that no
+	code grows past a limit however the weights are biased.  A compact code
+	table holds just the lengths, since the codes follow from them.
+ */
+
+import java.io.*;
+import java.util.*;
+import bitfuns.*;
+
+class Canonical
+{
+	protected static final int maxlength = 32;  // longest code unless another limit is given
+	private static final int sizebits = 3;  // field of a compact table giving the bits of each length
+	private static final int maxlengthbits = 6;  // bits of a length of up to 64
+
+	/*
+		Computes Huffman code lengths.  Leaves sorted by weight form one queue and
+		merged nodes, which are created in order of weight, form the other so that
+		the two lightest nodes are always at the head of one of the queues.
+
+		int weight[] - weight of each symbol
+
+		return code length of each symbol
+	*/
+	protected static int[] lengths(int weight[]) {
+		Metrics.Span span = Metrics.begin(Metrics.tree);
+		int n = weight.length, order[] = new int[n], parent[] = new int[2*n-1], depth[] = new int[2*n-1], len[] = new int[n];
+		long sorted[] = new long[n], w[] = new long[2*n-1];
+		int leaf = 0, merged = n, pick;
+
+		// sorts symbols by weight with symbol packed in low bits
+		for (int i=0; i < n; i++)
+			sorted[i] = ((long)weight[i] << 32) | i;
+		Arrays.sort(sorted);
+		for (int i=0; i < n; i++) {
+			order[i] = (int)sorted[i];
+			w[i] = sorted[i] >>> 32;
+		}
+
+		// merges two lightest nodes, preferring leaves on ties to keep tree shallow
+		for (int next=n; next < 2*n-1; next++) {
+			for (int j=0; j < 2; j++) {
+				if ((leaf < n) && ((merged >= next) || (w[leaf] <= w[merged])))
+					pick = leaf++;
+				else
+					pick = merged++;
+				parent[pick] = next;
+				w[next] += w[pick];
+			}
+		}
+
+		// parents always follow their children so depth is found in one backward pass
+		for (int i=2*n-3; i >= 0; i--)
+			depth[i] = depth[parent[i]]+1;
+		for (int i=0; i < n; i++)
+			len[order[i]] = depth[i];
+		span.end(0,0,n,0);
+		return len;
+	}
+
+	/*
+		Computes Huffman code lengths no longer than a limit.  Plain Huffman
+		lengths are kept when they fit, otherwise the package-merge algorithm
+		finds the best lengths within the limit.  Each level holds the sorted
+		leaves merged with packages that pair up neighbours of the level below,
+		the deepest level holding leaves alone.  Only whether each item is a
+		leaf is kept.  The lightest 2n-2 items of the top level are used, the
+		packages among them using twice as many items of the level below, and
+		each symbol is as long as the number of levels its leaf is used at.
+
+		int weight[] - weight of each symbol
+		int limit - longest code allowed, at least enough bits to number every symbol
+
+		return code length of each symbol
+	*/
+	protected static int[] lengths(int weight[], int limit) {
+		int len[] = lengths(weight), n = weight.length, order[] = new int[n], longest = 0, count, leaf, pack, items, used;
+		long sorted[] = new long[n], w[] = new long[n], level[], merged[];
+		BitSet leaves[];
+		Metrics.Span span;
+
+		for (int i=0; i < n; i++)
+			longest = Math.max(longest,len[i]);
+		if (longest <= limit)
+			return len;
+		if ((limit < 31) && ((1 << limit) < n))
+			throw new IllegalArgumentException("Codes of "+limit+" bits cannot number "+n+" symbols");
+
+		span = Metrics.begin(Metrics.tree);
+		for (int i=0; i < n; i++)
+			sorted[i] = ((long)weight[i] << 32) | i;
+		Arrays.sort(sorted);
+		for (int i=0; i < n; i++) {
+			order[i] = (int)sorted[i];
+			w[i] = sorted[i] >>> 32;
+		}
+
+		// builds levels from the deepest up, preferring leaves on ties
+		leaves = new BitSet[limit];
+		leaves[limit-1] = new BitSet(n);
+		leaves[limit-1].set(0,n);
+		level = w;
+		count = n;
+		for (int d=limit-2; d >= 0; d--) {
+			merged = new long[n+count/2];
+			leaves[d] = new BitSet(merged.length);
+			leaf = 0;
+			pack = 0;
+			for (items=0; items < merged.length; items++) {
+				if ((pack >= count/2) || ((leaf < n) && (w[leaf] <= level[2*pack]+level[2*pack+1]))) {
+					leaves[d].set(items);
+					merged[items] = w[leaf++];
+				} else {
+					merged[items] = level[2*pack]+level[2*pack+1];
+					pack++;
+				}
+			}
+			level = merged;
+			count = items;
+		}
+
+		// counts the levels each leaf is used at
+		Arrays.fill(len,0);
+		used = 2*n-2;
+		for (int d=0; d < limit; d++) {
+			leaf = 0;
+			for (int k=0; k < used; k++)
+				if (leaves[d].get(k))
+					len[order[leaf++]]++;
+			used = 2*(used-leaf);
+		}
+		span.end(0,0,0,limit);  // symbols were counted once by the plain lengths above
+		return len;
+	}
+
+	/*
+		Orders symbols canonically by code length then symbol
+
+		int len[] - code length of each symbol
+
+		return symbols in canonical order
+	*/
+	private static int[] order(int len[]) {
+		long sorted[] = new long[len.length];
+		int order[] = new int[len.length];
+
+		for (int i=0; i < len.length; i++)
+			sorted[i] = ((long)len[i] << 32) | i;
+		Arrays.sort(sorted);
+		for (int i=0; i < len.length; i++)
+			order[i] = (int)sorted[i];
+		return order;
+	}
+
+	/*
+		Assigns canonical codes numbered most significant bit first
+
+		int len[] - code length of each symbol
+		int order[] - symbols in canonical order
+
+		return code of each symbol
+	*/
+	private static long[] numbers(int len[], int order[]) {
+		long number[] = new long[len.length], code = 0;
+		int prevlen = len[order[0]];
+
+		for (int i=0; i < order.length; i++) {
+			code <<= len[order[i]]-prevlen;
+			prevlen = len[order[i]];
+			number[order[i]] = code++;
+		}
+		return number;
+	}
+
+	/*
+		Assigns canonical codes.  Codes are returned bit reversed since the first bit of
+		each code is written to the least significant end of the stream.
+
+		int len[] - code length of each symbol
+
+		return code of each symbol
+	*/
+	protected static long[] codes(int len[]) {
+		long codes[] = numbers(len,order(len));
+
+		for (int i=0; i < codes.length; i++)
+			codes[i] = Long.reverse(codes[i]) >>> (64-len[i]);
+		return codes;
+	}
+
+	/*
+		Finds the code length of each symbol from a tree, such as one read back
+		from a code table, so that canonical codes can be assigned to it
+
+		Node tree - root node
+		byte charwidth - symbol width in bits
+
+		return code length of each symbol
+	*/
+	protected static int[] lengths(Node tree, byte charwidth) {
+		int nodes = 2*tree.nodeCount()+1;
+		int child[] = new int[2*nodes], symbol[] = new int[nodes], depth[] = new int[nodes], len[] = new int[1<<charwidth];
+
+		// child nodes always follow their parent so depth can be found in one forward pass
+		tree.flatten(child,symbol);
+		for (int i=0; i < nodes; i++) {
+			if (symbol[i] < 0) {
+				depth[child[2*i]] = depth[i]+1;
+				depth[child[2*i+1]] = depth[i]+1;
+			} else
+				len[symbol[i]] = depth[i];
+		}
+		return len;
+	}
+
+	/* bits each length less one takes in a compact table */
+
+	private static int lengthBits(int len[]) {
+		int longest = 1;
+
+		for (int i=0; i < len.length; i++)
+			longest = Math.max(longest,len[i]);
+		return Math.max(1,32-Integer.numberOfLeadingZeros(longest-1));
+	}
+
+	/* bits in the compact table of these lengths */
+
+	protected static int tableBits(int len[]) {
+		return sizebits+len.length*lengthBits(len);
+	}
+
+	/* most bits a compact table can take */
+
+	protected static int maxTableBits(byte charwidth) {
+		return sizebits+(1<<charwidth)*maxlengthbits;
+	}
+
+	/*
+		Writes a compact code table.  The first field gives the bits each length
+		takes and then the length less one of every symbol follows in symbol
+		order, so the table is read in one pass with no arithmetic on big numbers.
+
+		int len[] - code length of each symbol
+		int tablen[] - receives the bits of the table
+
+		return table bits
+	*/
+	protected static BitSet table(int len[], int tablen[]) {
+		Metrics.Span span = Metrics.begin(Metrics.table);
+		int bits = lengthBits(len), pos = sizebits;
+		BitSet table = BitSet.valueOf(new long[] {bits-1});
+
+		for (int i=0; i < len.length; i++, pos+=bits)
+			for (int b=0; b < bits; b++)
+				if ((((len[i]-1) >>> b) & 1) != 0)
+					table.set(pos+b);
+		tablen[0] = pos;
+		tablen[1] = 0;
+		span.end(0,(pos+7)/8,0,0);
+		return table;
+	}
+
+	/*
+		Reads a compact code table
+
+		BitReader in - positioned at start of table
+		byte charwidth - symbol width in bits
+
+		return code length of each symbol
+	*/
+	protected static int[] lengths(BitReader in, byte charwidth) throws IOException {
+		int len[] = new int[1<<charwidth], bits = (int)in.read(sizebits)+1;
+
+		for (int i=0; i < len.length; i++)
+			len[i] = (int)in.read(bits)+1;
+		return len;
+	}
+
+	/*
+		Checks that lengths describe a whole tree, which a damaged table or a
+		wrong key would not
+
+		int len[] - code length of each symbol
+
+		return whether every code of the longest length is used exactly once
+	*/
+	protected static boolean complete(int len[]) {
+		int count[] = new int[65];
+		long free = 1, left = len.length;
+
+		for (int i=0; i < len.length; i++) {
+			if ((len[i] < 1) || (len[i] > 64))
+				return false;
+			count[len[i]]++;
+		}
+
+		// codes free at each depth, which can never be filled once they outnumber the symbols left
+		for (int l=1; l <= 64; l++) {
+			free = 2*free-count[l];
+			left -= count[l];
+			if ((free < 0) || (free > left))
+				return false;
+		}
+		return free == 0;
+	}
+
+	/*
+		Builds the tree whose codes match those from codes()
+
+		int len[] - code length of each symbol
+
+		return root node
+	*/
+	protected static Node tree(int len[]) {
+		Metrics.Span span = Metrics.begin(Metrics.tree);
+		int order[] = order(len);
+		Node tree = tree(len,order,numbers(len,order),0,order.length,0);
+
+		span.end(0,0,0,0);  // symbols are counted where the lengths were drawn
+		return tree;
+	}
+
+	private static Node tree(int len[], int order[], long number[], int from, int to, int depth) {
+		int split = from, sym;
+
+		if (to-from == 1) {
+			sym = order[from];
+			return new Node(BitSet.valueOf(new long[] {sym}),0);
+		}
+
+		// canonical numbering keeps codes with a zero at this depth ahead of those with a one
+		while ((split < to) && (((number[order[split]] >>> (len[order[split]]-1-depth)) & 1) == 0))
+			split++;
+		return new Node(tree(len,order,number,from,split,depth+1),tree(len,order,number,split,to,depth+1));
+	}
+}
@@ -0,0 +1,141 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Reads a channel through one reusable buffer.  The stream can be cut into
+	regions, such as the blocks of a blocked file, so that a decoder reading
+	ahead never runs past the end of the region it was given.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import bitfuns.*;
+
+class ChannelSource implements BufferSource
+{
+	private ReadableByteChannel channel;
+	private ByteBuffer buf;  // unread bytes lie between position and limit
+	protected static final long unbounded = Long.MAX_VALUE;  // region covering the rest of the channel
+
+	private long region = unbounded;  // bytes of the current region not yet handed out
+
+	/* Constructor */
+
+	protected ChannelSource(ReadableByteChannel channel, ByteBuffer buf) {
+		this.channel = channel;
+		this.buf = buf;
+		buf.clear();
+		buf.limit(0);
+	}
+
+	/*
+		Reads ahead until the buffer holds at least the given number of bytes or
+		the channel ends.  Relative gets on the buffer returned consume input.
+
+		int n - bytes wanted, no more than the buffer capacity
+
+		return buffer positioned at unread bytes
+	*/
+	protected ByteBuffer fill(int n) throws IOException {
+		buf.compact();
+		while (buf.position() < n)
+			if (read() < 0)
+				break;
+		buf.flip();
+		return buf;
+	}
+
+	/*
+		Reads bytes of the current region
+
+		byte dat[] - receives up to dat.length bytes
+
+		return number of bytes read, fewer only at the end of the region or channel
+	*/
+	protected int get(byte dat[]) throws IOException {
+		int i, n;
+
+		for (i=0; (i < dat.length) && (region > 0); i+=n) {
+			if (!buf.hasRemaining() && (fill(1).remaining() == 0))
+				break;
+			n = (int)Math.min(Math.min(buf.remaining(),dat.length-i),region);
+			buf.get(dat,i,n);
+			taken(n);
+		}
+		return i;
+	}
+
+	/*
+		Starts a region.  Bytes the last region did not use are skipped.
+
+		long size - bytes in region
+	*/
+	protected void region(long size) throws IOException {
+		int n;
+
+		for (; (region != unbounded) && (region > 0); region -= n) {
+			if (!buf.hasRemaining() && (fill(1).remaining() == 0))
+				break;
+			n = (int)Math.min(buf.remaining(),region);
+			buf.position(buf.position()+n);
+		}
+		region = size;
+	}
+
+	/*
+		Hands out the next run of unread bytes in the region.  The run must be
+		consumed before the next call since the buffer is then refilled.
+
+		return buffer or null at the end of the region or channel
+	*/
+	public ByteBuffer next() throws IOException {
+		ByteBuffer run;
+		int n;
+
+		if ((region == 0) || (!buf.hasRemaining() && (fill(1).remaining() == 0)))
+			return null;
+		n = (int)Math.min(buf.remaining(),region);
+		run = buf.duplicate();
+		run.limit(run.position()+n);
+		buf.position(buf.position()+n);
+		taken(n);
+		return run;
+	}
+
+	/* counts bytes taken from a bounded region */
+
+	private void taken(int n) {
+		if (region != unbounded)
+			region -= n;
+	}
+
+	/* reads once into free space, waiting on channels that return nothing */
+
+	private int read() throws IOException {
+		int n;
+
+		do {
+			n = channel.read(buf);
+		} while (n == 0);
+		return n;
+	}
+}
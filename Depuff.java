@@ -28,6 +28,7 @@ import java.io.*;
 import java.util.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
 import java.nio.BufferUnderflowException;
 import java.nio.BufferOverflowException;
 import java.util.zip.CRC32;
@@ -36,6 +37,9 @@ import bitfuns.*;
 
 class Depuff {
 
+	// bytes of memory used per byte of chunk by the BitSet based decoder
+	private static final int legacyratio = 8;
+
 	/*
 		The following function decodes the file.  The index which is passed from the main should contain
 		the position of the first prefix-free code in the actual encrypted file.  This might not start on
@@ -49,21 +53,21 @@ class Depuff {
 		int remsize - number of bits in rembits
 		int targetsize - expected size of output file
 		byte charwidth - word size of output file
+		Budget budget - memory that chunks may use
 
 		return crc of output file
 	*/
-	private static int decodeFile(ByteBuffer input, ByteBuffer output, Node tree, int index, BitSet rembits, int remsize, int targetsize, byte charwidth) {
+	protected static int decodeFile(ByteBuffer input, ByteBuffer output, Node tree, int index, BitSet rembits, int remsize, int targetsize, byte charwidth, Budget budget) {
 		int outdex=0, bufsize, readsize, readpos=input.position(), bitlen[] = {remsize, 0};
 		BitSet instream, outstream = new BitSet(), bitdat[] = new BitSet[2];
 		byte crypt[], plain[];
-		Runtime rt = Runtime.getRuntime();
 		CRC32 crc = new CRC32();
-		long writpos=0;
+		long writpos=0, chunks=0, inputsize=input.remaining()+remsize/8;
+		Metrics.Span span = Metrics.begin(Metrics.decode), part;
 
-		// allocates enough memory to read entire file
-		// if not enough memory is available it will allocate as much as it can
-		// and process the file in chunks
-		bufsize = (int)rt.freeMemory();
+		// reads entire file if it fits in the memory budget otherwise processes the file in chunks
+		// chunks hold at least twice the longest code so that each pass makes progress
+		bufsize = Math.max(budget.chunk(legacyratio,1),2*(int)java.lang.Math.pow(2,charwidth));
 		readsize = bufsize;
 		if (input.capacity() - readpos < bufsize){
 			readsize = input.capacity()-readpos;
@@ -96,7 +100,9 @@ class Depuff {
 						plain = Bitfun.toByteArray(outstream,plain);
 						outstream.clear();
 						output.put(plain);
+						part = Metrics.begin(Metrics.crc);
 						crc.update(plain);
+						part.end(plain.length,0,0,0);
 						outdex = 0;
 					}
 				}
@@ -108,14 +114,7 @@ class Depuff {
 					rembits = instream.get(index,instream.length());  // saves remaining bits for next pass
 				readpos += readsize;
 				index=0;
-			} catch (OutOfMemoryError e) {
-				// if for some reason it is unable to allocate desired memory chunk
-				// it tries again this time only asking for half
-				bufsize = bufsize / 2;
-				readsize = bufsize;
-				input.position(readpos);  // sets positions back to correct point in files
-				crypt = new byte[bufsize];
-				System.err.printf("Setting bufsize to %d bytes\n",bufsize);
+				chunks++;
 			} catch (BufferOverflowException e) {
 				// this should not happen
 				System.err.println("Buffer overflow at writpos = "+writpos+"; outdex = "+outdex);
@@ -130,9 +129,308 @@ class Depuff {
 			output.put(plain);
 			crc.update(plain);
 		}
+		span.end(inputsize,targetsize,writpos/charwidth,chunks);
 		return (int)crc.getValue();
 	}
 
+	/* bytes at start of stream needed to hold tree description and key */
+
+	protected static int headSize(byte kdat[], byte charwidth) {
+		return Math.max(kdat.length,Node.tableBits(charwidth)/8+1);
+	}
+
+	protected static int headSize(byte kdat[], byte charwidth, boolean compact) {
+		return compact ? Math.max(kdat.length,Canonical.maxTableBits(charwidth)/8+1) : headSize(kdat,charwidth);
+	}
+
+	/*
+		Decrypts the start of a stream and rebuilds the tree it describes
+
+		byte dat[] - start of stream which is decrypted in place
+		byte kdat[] - key data
+		byte charwidth - word size of output file
+		Keystream keys - also removed from dat when not null
+
+		return root node
+	*/
+	protected static Node readTree(byte dat[], byte kdat[], byte charwidth, Keystream keys) {
+		Metrics.Span span = Metrics.begin(Metrics.table);
+		BitSet bitdat, treeidbits, contentbits, contenttab[];
+		int treeidsize;
+		Node tree;
+
+		// this is where decryption takes place
+		for (int i=0; i < Math.min(kdat.length,dat.length); i++)
+			dat[i] ^= kdat[i];
+		if (keys != null)
+			keys.apply(dat,0,dat.length);
+		bitdat = Bitfun.fromByteArray(dat);
+
+		// extract tree id and ordered content
+		treeidsize = Node.idBits(charwidth);
+		treeidbits = bitdat.get(0,treeidsize);
+		contentbits = bitdat.get(treeidsize,Node.tableBits(charwidth));
+		contenttab = new BitSet[(int)java.lang.Math.pow(2,charwidth)];
+		for (int i=0; i < contenttab.length; i++) {
+			contenttab[i] = contentbits.get(i*charwidth,(i+1)*charwidth);
+		}
+
+		// reconstructs tree
+		tree = new Node(new BitSet(),0);
+		if (charwidth > Node.maxranked)
+			tree.buildShape(treeidbits,(int)java.lang.Math.pow(2,charwidth)-1);
+		else
+			tree.buildTree(Bitfun.toBigInteger(treeidbits),(int)java.lang.Math.pow(2,charwidth)-1);
+		tree.putContent(contenttab);
+		span.end(dat.length,0,0,0);
+		return tree;
+	}
+
+	/*
+		Decrypts the start of a stream and rebuilds the tree of its code table,
+		either a tree id and content order or a compact table of code lengths
+
+		byte dat[] - start of stream which is decrypted in place
+		byte kdat[] - key data
+		byte charwidth - word size of output file
+		Keystream keys - also removed from dat when not null
+		boolean compact - whether the table holds code lengths
+		int tablebits[] - receives the bits of the table
+
+		return root node
+	*/
+	protected static Node readTable(byte dat[], byte kdat[], byte charwidth, Keystream keys, boolean compact, int tablebits[]) throws IOException {
+		Metrics.Span span;
+		int len[];
+
+		if (!compact) {
+			tablebits[0] = Node.tableBits(charwidth);
+			return readTree(dat,kdat,charwidth,keys);
+		}
+
+		span = Metrics.begin(Metrics.table);
+		for (int i=0; i < Math.min(kdat.length,dat.length); i++)
+			dat[i] ^= kdat[i];
+		if (keys != null)
+			keys.apply(dat,0,dat.length);
+		len = Canonical.lengths(new BitReader(ByteBuffer.wrap(dat),new BufferSource() {
+			public ByteBuffer next() {
+				return null;
+			}
+		}),charwidth);
+		if (!Canonical.complete(len))
+			throw new IOException("Code table is damaged - confirm encryption key");
+		tablebits[0] = Canonical.tableBits(len);
+		span.end(dat.length,0,0,0);
+		return Canonical.tree(len);
+	}
+
+	/*
+		Decodes one block into its place in the output file
+
+		byte kdat[] - key data
+		FileChannel cipherfile - input file
+		FileChannel plainfile - output file
+		long offset - position of block in input file
+		int length - encrypted length of block
+		long outpos - position of block in output file
+		int size - decrypted length of block
+		byte charwidth - word size of output file
+		int streams - interleaved streams in block or 0 for one
+		boolean compact - whether the code table holds code lengths
+		ByteBuffer slice - reusable buffer output is written through
+
+		return crc of block
+	*/
+	private static int decodeBlock(byte kdat[], FileChannel cipherfile, FileChannel plainfile, long offset, int length, long outpos, int size, byte charwidth, int streams, boolean compact, ByteBuffer slice) throws IOException {
+		byte dat[] = new byte[(streams > 0) ? length : Math.min(headSize(kdat,charwidth,compact),length)];
+		ByteBuffer head = ByteBuffer.wrap(dat);
+		int crc, tablebits[] = new int[1];
+		Node tree;
+
+		while (head.hasRemaining())
+			if (cipherfile.read(head,offset+head.position()) < 0)
+				throw new EOFException();
+		if (streams > 0)
+			return decodeStreams(dat,kdat,charwidth,streams,compact,new OutputSink(plainfile,outpos,slice),size);
+		tree = readTable(dat,kdat,charwidth,null,compact,tablebits);
+
+		// positional writes let blocks finish in any order
+		crc = new TableDecoder(tree,charwidth).decode(ByteBuffer.wrap(dat),new Window(cipherfile,FileChannel.MapMode.READ_ONLY,offset+dat.length,offset+length,length),
+			new OutputSink(plainfile,outpos,slice),tablebits[0],size,null);
+		return crc;
+	}
+
+	/*
+		Decodes a block of interleaved streams.  The code table is padded to a
+		byte and followed by the length of every stream but the last, then the
+		streams themselves.
+
+		byte block[] - whole encrypted block, decrypted in place
+		byte kdat[] - key data
+		byte charwidth - word size of output file
+		int streams - number of interleaved streams
+		boolean compact - whether the code table holds code lengths
+		OutputSink output - receives plain block
+		int size - decrypted length of block
+
+		return crc of block
+	*/
+	protected static int decodeStreams(byte block[], byte kdat[], byte charwidth, int streams, boolean compact, OutputSink output, int size) throws IOException {
+		byte dat[] = Arrays.copyOf(block,Math.min(headSize(kdat,charwidth,compact),block.length));
+		ByteBuffer buf = ByteBuffer.wrap(block);
+		BitReader in[] = new BitReader[streams];
+		BufferSource none = new BufferSource() {
+			public ByteBuffer next() {
+				return null;
+			}
+		};
+		int tablebits[] = new int[1], lengths, start, length, lastbits;
+		TableDecoder decoder;
+		Metrics.Span span;
+		BitWriter out;
+		long target;
+
+		// key covers no more than the bytes dat holds
+		decoder = new TableDecoder(readTable(dat,kdat,charwidth,null,compact,tablebits),charwidth,1);
+		System.arraycopy(dat,0,block,0,dat.length);
+		lengths = (tablebits[0]+7)/8;
+		start = lengths+4*(streams-1);
+
+		span = Metrics.begin(Metrics.decode);
+		for (int s=0; s < streams; s++) {
+			length = (s < streams-1) ? buf.getInt(lengths+4*s) : block.length-start;
+			if ((length < 0) || (start > block.length-length))
+				throw new IOException("Stream lengths are damaged");
+			in[s] = new BitReader(ByteBuffer.wrap(block,start,length),none);
+			start += length;
+		}
+		target = ((long)size*8+charwidth-1)/charwidth;
+		lastbits = (int)((long)size*8-(target-1)*charwidth);
+		out = new BitWriter(output.first(),output);
+		decoder.decode(in,out,target,lastbits);
+		out.finish();
+		output.close();
+		span.end(block.length,size,target,streams);
+		return output.getCrc();
+	}
+
+	/*
+		Decodes a file of independent blocks on a ForkJoin pool.  Decoded blocks
+		are written through a pool of slices sized by the memory budget.
+
+		byte kdat[] - key data
+		FileChannel cipherfile - input file
+		FileChannel plainfile - output file
+		Header header - header giving file and block size
+		Budget budget - memory that buffered blocks may use
+
+		return whether index and every block passed crc check
+	*/
+	private static boolean decodeBlocks(final byte kdat[], final FileChannel cipherfile, final FileChannel plainfile, final Header header, Budget budget) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool();
+		final int nblocks = header.getBlocks();
+		final int slicesize = Math.min(OutputSink.defaultslice,budget.chunk(1,1));
+		final Pool<ByteBuffer> buffers = new Pool<ByteBuffer>(budget.slots(slicesize,2*pool.getParallelism())) {
+			protected ByteBuffer create() {
+				return ByteBuffer.allocateDirect(slicesize);
+			}
+		};
+		ByteBuffer index = ByteBuffer.allocate(nblocks*8);
+		ArrayList<ForkJoinTask<Boolean>> tasks = new ArrayList<ForkJoinTask<Boolean>>();
+		CRC32 crc = new CRC32();
+		long offset = header.size()+index.capacity();
+		boolean match = true;
+
+		while (index.hasRemaining())
+			if (cipherfile.read(index,header.size()+index.position()) < 0)
+				throw new EOFException();
+		index.flip();
+		crc.update(index.duplicate());
+		if ((int)crc.getValue() != header.getCrc()) {
+			System.err.println("Block index is damaged");
+			return false;
+		}
+
+		try {
+			for (int b=0; b < nblocks; b++) {
+				final int n = b, length = index.getInt(), blockcrc = index.getInt();
+				final long start = offset;
+				final ByteBuffer buf = buffers.take();  // waits while the pool is in use
+
+				tasks.add(pool.submit(new Callable<Boolean>() {
+					public Boolean call() throws IOException {
+						long outpos = (long)n*header.getBlocksize();
+						int size = (int)Math.min(header.getBlocksize(),header.getLength()-outpos);
+
+						try {
+							return decodeBlock(kdat,cipherfile,plainfile,start,length,outpos,size,header.getCharwidth(),header.getStreams(),header.isCompact(),buf) == blockcrc;
+						} catch (IOException e) {
+							System.err.println("Block "+n+": "+e.getMessage());
+							return false;
+						} finally {
+							buffers.give(buf);
+						}
+					}
+				}));
+				offset += length;
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+
+		for (int b=0; b < nblocks; b++)
+			if (!tasks.get(b).join())
+				match = false;
+		pool.shutdown();
+		return match;
+	}
+
+	/*
+		Decodes every .puf file named in a list or found under a directory, each
+		to the same name without .puf
+
+		String path - list file or directory
+		byte kdat[] - key data
+		int threads - files decoded at once
+
+		return number of files that failed
+	*/
+	private static int decodeBatch(String path, byte kdat[], int threads) throws IOException {
+		final PuffDecoder decoder = new PuffDecoder(kdat,threads);
+		Batch batch = new Batch(threads) {
+			protected boolean accept(String file) {
+				return file.endsWith(".puf");
+			}
+
+			protected void process(String file) throws IOException {
+				FileChannel in, out = null;
+				String plain;
+				boolean done = false;
+
+				if (!accept(file))
+					throw new IOException("Name does not end in .puf");
+				plain = file.substring(0,file.length()-".puf".length());
+				in = new FileInputStream(file).getChannel();
+				try {
+					out = new FileOutputStream(plain).getChannel();
+					decoder.decode(in,out);
+					done = true;
+				} finally {
+					in.close();
+					if (out != null) {
+						out.close();
+						if (!done)
+							new File(plain).delete();
+					}
+				}
+			}
+		};
+
+		batch.run(path);
+		return batch.report("Decrypted");
+	}
+
 	/*
 		main method
 
@@ -142,79 +440,278 @@ class Depuff {
 	throws IOException {
 		FileChannel input, output;
 		ByteBuffer inbuf, outbuf;
-		byte charwidth, dat[], kdat[], filesig[] = new byte[4], cryptwidths[];
-		int outputsize, crc1, crc2, bufsize;
-		BitSet bitdat, treeidbits, contentbits, contenttab[];
-		String targetsig = "PUFF";
-		int treeidsize;
-		BigInteger treeid;
+		byte charwidth, dat[], kdat[], cryptwidths[];
+		int crc1, crc2, bufsize, slicesize, threads = Runtime.getRuntime().availableProcessors(), failed, tablebits[] = new int[1];
+		BitSet bitdat;
 		Node tree;
+		Keystream keys;
+		Metrics.Span span;
+		String batch = null, archive = null;
+		ArrayList<String> files = new ArrayList<String>();
+		boolean legacy = false, windowed = false, stats = false, list = false, stream = false, speculate = false;
+		int window = Window.defaultsize;
+		Budget budget = null;
+		long outputsize;
+		Header header;
+
+		// separates options from file names
+		for (int i=0; i < args.length; i++) {
+			if (args[i].equals("-legacy"))
+				legacy = true;
+			else if (args[i].equals("-window") && (i+1 < args.length)) {
+				window = Integer.parseInt(args[++i]);
+				windowed = true;
+			} else if (args[i].equals("-memory") && (i+1 < args.length))
+				budget = new Budget(Long.parseLong(args[++i]));
+			else if (args[i].equals("-stats"))
+				stats = true;
+			else if (args[i].equals("-batch") && (i+1 < args.length))
+				batch = args[++i];
+			else if (args[i].equals("-threads") && (i+1 < args.length))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-archive") && (i+1 < args.length))
+				archive = args[++i];
+			else if (args[i].equals("-list"))
+				list = true;
+			else if (args[i].equals("-stream"))
+				stream = true;
+			else if (args[i].equals("-speculate"))
+				speculate = true;
+			else
+				files.add(args[i]);
+		}
+
+		if (budget == null)
+			budget = new Budget();
+
+		if (stream && (files.size() == 1)) {
+			if (legacy || (batch != null) || (archive != null)) {
+				System.err.println("-stream cannot be combined with -legacy, -batch or -archive");
+				System.exit(1);
+			}
+
+			// standard output carries the stream so nothing else may be printed there
+			failed = 0;
+			try {
+				new PuffDecoder(Key.getKey(files.get(0)),1).decode(new FileInputStream(FileDescriptor.in).getChannel(),new FileOutputStream(FileDescriptor.out).getChannel());
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				failed = 1;
+			}
+			if (stats)
+				System.err.println(Metrics.total);
+			System.exit(failed);
+		}
+
+		if (archive != null) {
+			if (legacy || (batch != null)) {
+				System.err.println("-archive cannot be combined with -legacy or -batch");
+				System.exit(1);
+			}
+			input = new FileInputStream(archive).getChannel();
+			try {
+				Archive arc = new Archive(input);
+
+				if (list) {
+					// index is not encrypted so no key is needed to list it
+					for (Archive.Member member : arc.getMembers())
+						System.out.println(member.getSize()+"\t"+member.getName());
+					System.exit(0);
+				}
+				if (files.isEmpty()) {
+					System.err.println("Usage:  java Depuff -archive <archivefile> [-list] [-stats] [<member>...] <keyfile>");
+					System.exit(1);
+				}
+
+				// members named ahead of the key or every member when none are
+				failed = arc.extract(files.subList(0,files.size()-1),Key.getKey(files.get(files.size()-1)));
+			} catch (IOException e) {
+				System.err.println(archive+": "+e.getMessage());
+				failed = 1;
+			} finally {
+				input.close();
+			}
+			if (stats)
+				System.out.println(Metrics.total);
+			System.exit((failed > 0) ? 1 : 0);
+		}
 
-		if (args.length == 3) {
+		if ((batch != null) && (files.size() == 1)) {
+			if (legacy) {
+				System.err.println("-batch cannot be combined with -legacy");
+				System.exit(1);
+			}
+
+			// key is read once for every file
+			failed = decodeBatch(batch,Key.getKey(files.get(0)),threads);
+			if (stats)
+				System.out.println(Metrics.total);
+			System.exit((failed > 0) ? 1 : 0);
+		}
+
+		if (files.size() == 3) {
 			// gets key data
-			kdat = Key.getKey(args[2]);
+			kdat = Key.getKey(files.get(2));
 
 			// opens input file
-			input = new FileInputStream(args[0]).getChannel();
-			inbuf = input.map(FileChannel.MapMode.READ_ONLY, 0, (int)input.size());
-			input.close();
+			input = new FileInputStream(files.get(0)).getChannel();
+			if (legacy && (input.size() > Integer.MAX_VALUE)) {
+				System.err.println("-legacy cannot decrypt files over 2 GB");
+				System.exit(1);
+			}
+			// mapping is only paged in as read so larger files map the first 2 GB for the header
+			inbuf = input.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(input.size(),Integer.MAX_VALUE));
 
 			// verifies file signature
-			inbuf.get(filesig);
-			if (!targetsig.equals(new String(filesig))) {
+			header = Header.read(inbuf);
+			if (header == null) {
 				System.err.println("Invalid file signature.");
 				System.exit(1);
 			}
 
+			if (header.isStreamed()) {
+				// adaptive streams are decoded in sequence a segment at a time
+				output = new FileOutputStream(files.get(1)).getChannel();
+				try {
+					new PuffDecoder(kdat,1).decode(input.position(0),output);
+					System.out.println("CRC match");
+				} catch (IOException e) {
+					System.err.println(e.getMessage());
+				}
+				output.close();
+				input.close();
+				if (stats)
+					System.out.println(Metrics.total);
+				return;
+			}
+
 			// reads file header
-			charwidth = inbuf.get();
-			outputsize = inbuf.getInt();
-			crc1 = inbuf.getInt();
+			charwidth = header.getCharwidth();
+			outputsize = header.getLength();
+			crc1 = header.getCrc();
+			windowed |= header.isWide() || (input.size() > Integer.MAX_VALUE);
+
+			if (legacy && (header.getBlocksize() > 0)) {
+				System.err.println("-legacy cannot decrypt blocks");
+				System.exit(1);
+			}
+			if (speculate && (legacy || header.isKeyed())) {
+				System.err.println("-speculate cannot be combined with -legacy or a keystream");
+				System.exit(1);
+			}
 
-			// gets tree and ordered content
-			treeidsize = Node.maxTrees((int)java.lang.Math.pow(2,charwidth)-1).bitLength();
+			if (header.getBlocksize() > 0) {
+				// blocks carry their own trees and are decoded concurrently
+				output = new RandomAccessFile(files.get(1),"rw").getChannel();
+				output.truncate(0);
+				if (!decodeBlocks(kdat,input,output,header,budget))
+					System.err.println("CRC mismatch - confirm encryption key");
+				else
+					System.out.println("CRC match");
+				output.close();
+				input.close();
+				if (stats)
+					System.out.println(Metrics.total);
+				return;
+			}
 
 			// allocates at least enough to hold tree description and key
-			bufsize = Math.max(kdat.length,(treeidsize+(int)java.lang.Math.pow(2,charwidth)*charwidth)/8+1);
+			bufsize = headSize(kdat,charwidth,header.isCompact());
 			if (bufsize > inbuf.capacity()-inbuf.position())
-				bufsize = inbuf.capacity();
+				bufsize = inbuf.capacity()-inbuf.position();
 			dat = new byte[bufsize];
 			inbuf.get(dat);
 
-			// this is where decryption takes place
-			for (int i=0; i < kdat.length; i++)
-				dat[i] ^= kdat[i];
-			bitdat = Bitfun.fromByteArray(dat);
-			dat = null;
-
-			// extract tree id and ordered content
-			treeidbits = bitdat.get(0,treeidsize);
-			treeid = Bitfun.toBigInteger(treeidbits);
-			contentbits = bitdat.get(treeidsize,treeidsize+(int)java.lang.Math.pow(2,charwidth)*charwidth);
-			contenttab = new BitSet[(int)java.lang.Math.pow(2,charwidth)];
-			for (int i=0; i < contenttab.length; i++) {
-				contenttab[i] = contentbits.get(i*charwidth,(i+1)*charwidth);
+			if (legacy && windowed) {
+				System.err.println("-legacy cannot decrypt in windows");
+				System.exit(1);
+			}
+			if (legacy && header.isKeyed()) {
+				System.err.println("-legacy cannot decrypt a keystream");
+				System.exit(1);
+			}
+			if (legacy && (charwidth != Puffman.charwidth)) {
+				System.err.println("-legacy only decrypts "+Puffman.charwidth+" bit words");
+				System.exit(1);
+			}
+			if (legacy && header.isCompact()) {
+				System.err.println("-legacy cannot decrypt a compact code table");
+				System.exit(1);
 			}
 
-			// reconstructs tree
-			tree = new Node(new BitSet(),0);
-			tree.buildTree(treeid,(int)java.lang.Math.pow(2,charwidth)-1);
-			tree.putContent(contenttab);
+			// gets tree and ordered content, the keystream continuing from the end of dat
+			keys = header.isKeyed() ? new Keystream(kdat) : null;
+			try {
+				tree = readTable(dat,kdat,charwidth,keys,header.isCompact(),tablebits);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+				return;
+			}
+			bitdat = Bitfun.fromByteArray(dat);
 
 			// writes output file
-			output = new FileOutputStream(args[1]).getChannel();
-			outbuf = ByteBuffer.allocateDirect(outputsize);  // supports larger files
+			if (speculate) {
+				// chunks of a single stream are found from guessed positions and decoded concurrently
+				output = new RandomAccessFile(files.get(1),"rw").getChannel();
+				crc2 = Speculative.decode(dat,tree,tablebits[0],input,inbuf.position()-dat.length,output,header,threads);
+			} else if (windowed) {
+				// maps output a window at a time with long offsets
+				output = new RandomAccessFile(files.get(1),"rw").getChannel();
+				output.truncate(0);
+				crc2 = new TableDecoder(tree,charwidth).decode(ByteBuffer.wrap(dat),new Window(input,FileChannel.MapMode.READ_ONLY,inbuf.position(),input.size(),window),
+					new OutputSink(new Window(output,FileChannel.MapMode.READ_WRITE,0,outputsize,window)),tablebits[0],outputsize,keys);
+			} else if (legacy) {
+				if (budget.fits(outputsize)) {
+					output = new FileOutputStream(files.get(1)).getChannel();
+					outbuf = ByteBuffer.allocateDirect((int)outputsize);  // supports larger files
+				} else {
+					// legacy decoder writes to output mapped whole when it does not fit the budget
+					output = new RandomAccessFile(files.get(1),"rw").getChannel();
+					output.truncate(0);
+					outbuf = output.map(FileChannel.MapMode.READ_WRITE,0,outputsize);
+				}
 
-			crc2 = decodeFile(inbuf,outbuf,tree,treeidsize+(int)java.lang.Math.pow(2,charwidth)*charwidth,bitdat,bufsize*8,outputsize,charwidth);
+				// walks tree one bit at a time
+				crc2 = decodeFile(inbuf,outbuf,tree,Node.tableBits(charwidth),bitdat,bufsize*8,(int)outputsize,charwidth,budget);
+				if (budget.fits(outputsize)) {
+					span = Metrics.begin(Metrics.write);
+					outbuf.rewind();
+					output.write(outbuf);
+					span.end(0,outputsize,0,1);
+				}
+			} else {
+				// streams output in slices so memory use does not grow with the size of the file
+				// decrypted header bytes are passed along as they may hold the first codes
+				slicesize = Math.min(OutputSink.defaultslice,budget.chunk(2,1));
+				output = new FileOutputStream(files.get(1)).getChannel();
+				crc2 = new TableDecoder(tree,charwidth).decode(ByteBuffer.wrap(dat),new Window(inbuf),
+					new OutputSink(output,0,ByteBuffer.allocateDirect(slicesize),ByteBuffer.allocateDirect(slicesize)),tablebits[0],outputsize,keys);
+			}
 			if (crc1 != crc2)
 				System.err.println("CRC mismatch - confirm encryption key");
 			else
 				System.out.println("CRC match");
-			outbuf.rewind();
-			output.write(outbuf);
 			output.close();
+			input.close();
+			if (stats)
+				System.out.println(Metrics.total);
 		} else {
-			System.err.println("Usage:  java Depuff <infile> <outfile> <keyfile>");
+			System.err.println("Usage:  java Depuff [-legacy] [-window <bytes>] [-memory <bytes>] [-stats] <infile> <outfile> <keyfile>");
+			System.err.println("        java Depuff -speculate [-threads <n>] [-stats] <infile> <outfile> <keyfile>");
+			System.err.println("        java Depuff -batch <listfile|directory> [-threads <n>] [-stats] <keyfile>");
+			System.err.println("        java Depuff -stream [-stats] <keyfile> < <infile> > <outfile>");
+			System.err.println("        java Depuff -archive <archivefile> [-list] [-stats] [<member>...] <keyfile>");
+			System.err.println("-legacy decodes by walking the tree one bit at a time");
+			System.err.println("-window maps input and output a window at a time");
+			System.err.println("-memory sets how many bytes of buffers may be held at once");
+			System.err.println("-stats prints time, bytes and symbols of each phase when done");
+			System.err.println("-batch decrypts every .puf file named in a list or found under a directory");
+			System.err.println("-archive extracts the named members of an archive or all of them");
+			System.err.println("-list prints the size and name of each member of an archive");
+			System.err.println("-stream decrypts standard input to standard output");
+			System.err.println("-speculate decrypts a single stream file in chunks found from guessed positions");
+			System.err.println("-threads sets how many files a batch or chunks -speculate decrypts at once");
 		}
 	}
 }
@@ -0,0 +1,235 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	File header written ahead of the encrypted content.  Files that fit in
+	2 GB keep the original layout with a 32 bit length while larger files
+	use a second signature followed by a 64 bit length.  Files split into
+	independent blocks use a third signature and also record the block size.
+	Files with a keystream over the whole stream use a fourth signature and
+	the 64 bit layout.  Streams of unknown length coded adaptively use a
+	fifth signature followed only by the word size, their length and crc
+	coming at the end of the stream.  Blocks whose symbols are dealt across
+	interleaved bitstreams use a sixth signature and add the stream count.
+	Files whose code tables hold code lengths put a seventh signature ahead
+	of the last letter of the signature they would otherwise have, followed
+	by that layout unchanged.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+class Header
+{
+	private static final String shortsig = "PUFF";  // original length held in 32 bits
+	private static final String longsig = "PUFL";  // original length held in 64 bits
+	private static final String blocksig = "PUFB";  // independent blocks with 64 bit length
+	private static final String keyedsig = "PUFX";  // keystream over whole stream with 64 bit length
+	private static final String streamsig = "PUFS";  // adaptive stream of unknown length
+	private static final String interleavedsig = "PUFI";  // blocks of interleaved streams with 64 bit length
+	private static final String compactsig = "PUFC";  // code lengths ahead of another layout
+
+	private byte charwidth;  // word size of original file
+	private long length;  // size of original file
+	private int crc;  // crc of original file
+	private boolean wide;  // whether length needs 64 bits
+	private int blocksize;  // bytes of original file per block or 0 for a single stream
+	private boolean keyed;  // whether keystream covers the whole stream
+	private boolean streamed;  // whether stream is coded adaptively with no length
+	private int streams;  // interleaved bitstreams per block or 0 for one
+	private boolean compact;  // whether code tables hold code lengths rather than a tree id
+
+	/* Constructors */
+
+	protected Header(byte charwidth, long length) {
+		this.charwidth = charwidth;
+		this.length = length;
+		this.wide = length > Integer.MAX_VALUE;
+	}
+
+	protected Header(byte charwidth, long length, int blocksize) {
+		this(charwidth,length);
+		this.wide = true;
+		this.blocksize = blocksize;
+	}
+
+	protected Header(byte charwidth, long length, int blocksize, int streams) {
+		this(charwidth,length,blocksize);
+		this.streams = streams;
+	}
+
+	protected Header(byte charwidth, long length, boolean keyed) {
+		this(charwidth,length);
+		this.wide |= keyed;
+		this.keyed = keyed;
+	}
+
+	protected Header(byte charwidth) {
+		this(charwidth,0);
+		this.streamed = true;
+	}
+
+	/* Accessors */
+
+	protected byte getCharwidth() {
+		return charwidth;
+	}
+
+	protected long getLength() {
+		return length;
+	}
+
+	protected int getCrc() {
+		return crc;
+	}
+
+	protected void setCrc(int crc) {
+		this.crc = crc;
+	}
+
+	protected boolean isWide() {
+		return wide;
+	}
+
+	protected boolean isKeyed() {
+		return keyed;
+	}
+
+	protected boolean isStreamed() {
+		return streamed;
+	}
+
+	protected int getBlocksize() {
+		return blocksize;
+	}
+
+	protected boolean isCompact() {
+		return compact;
+	}
+
+	protected void setCompact(boolean compact) {
+		this.compact = compact;
+	}
+
+	protected int getStreams() {
+		return streams;
+	}
+
+	/* number of blocks or 0 for a single stream */
+
+	protected int getBlocks() {
+		return (blocksize == 0) ? 0 : (int)((length+blocksize-1)/blocksize);
+	}
+
+	/* size of header in bytes */
+
+	protected int size() {
+		if (streamed)
+			return streamsig.length()+1;
+		return shortsig.length()+(compact ? 1 : 0)+(Byte.SIZE+(wide ? Long.SIZE : Integer.SIZE)+Integer.SIZE+(blocksize > 0 ? Integer.SIZE : 0)+(streams > 0 ? Byte.SIZE : 0))/8;
+	}
+
+	/*
+		Reads header from start of file
+
+		ByteBuffer buf - cipher file positioned at start
+
+		return header or null if file signature is not recognized
+	*/
+	protected static Header read(ByteBuffer buf) {
+		byte filesig[] = new byte[shortsig.length()];
+		String sig;
+		Header header;
+		byte charwidth;
+		boolean compact;
+
+		buf.get(filesig);
+		sig = new String(filesig);
+
+		// compact tables name the layout that follows in one more letter
+		compact = sig.equals(compactsig);
+		if (compact) {
+			filesig[filesig.length-1] = buf.get();
+			sig = new String(filesig);
+			if (sig.equals(compactsig) || sig.equals(streamsig))
+				return null;
+		}
+		if (!sig.equals(shortsig) && !sig.equals(longsig) && !sig.equals(blocksig) && !sig.equals(keyedsig) && !sig.equals(streamsig) && !sig.equals(interleavedsig))
+			return null;
+
+		charwidth = buf.get();
+		if (sig.equals(streamsig))
+			return new Header(charwidth);
+		header = new Header(charwidth,sig.equals(shortsig) ? buf.getInt() : buf.getLong());
+		header.compact = compact;
+		header.wide = !sig.equals(shortsig);
+		header.keyed = sig.equals(keyedsig);
+		header.crc = buf.getInt();
+		if (sig.equals(blocksig) || sig.equals(interleavedsig))
+			header.blocksize = buf.getInt();
+		if (sig.equals(interleavedsig))
+			header.streams = buf.get()&0xFF;
+		return header;
+	}
+
+	/* returns header ready to be written */
+
+	protected ByteBuffer toBuffer() {
+		ByteBuffer buf = ByteBuffer.allocate(size());
+
+		String sig = streamed ? streamsig : streams > 0 ? interleavedsig : blocksize > 0 ? blocksig : keyed ? keyedsig : wide ? longsig : shortsig;
+
+		// puts file signature to header, compact tables ahead of the layout they use
+		if (compact && !streamed)
+			buf.put((compactsig+sig.substring(sig.length()-1)).getBytes());
+		else
+			buf.put(sig.getBytes());
+
+		// puts character width to header
+		buf.put(charwidth);
+
+		// length and crc of a stream follow its content
+		if (streamed) {
+			buf.rewind();
+			return buf;
+		}
+
+		// puts original file length to header
+		if (wide)
+			buf.putLong(length);
+		else
+			buf.putInt((int)length);
+
+		// puts original file crc or crc of block index
+		buf.putInt(crc);
+
+		// puts block size
+		if (blocksize > 0)
+			buf.putInt(blocksize);
+
+		// puts number of interleaved streams
+		if (streams > 0)
+			buf.put((byte)streams);
+
+		buf.rewind();
+		return buf;
+	}
+}
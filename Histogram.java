@@ -0,0 +1,234 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Symbol frequency counting for tree construction.  The whole input is
+	scanned in parallel slices, each counted into its own tables, and the
+	counts are merged at the end.  Symbols are shifted out of 64 bit words
+	read straight from the mapped input.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
+
+class Histogram
+{
+	// bytes of input counted by each task, rounded down to whole symbol groups
+	private static final int slicesize = 1<<24;
+
+	/*
+		Counts symbols in a buffer.  Every charwidth bytes hold exactly eight symbols so
+		each group is read as one word and split with shifts.  Four interleaved tables
+		keep runs of the same symbol from stalling on a single counter.  Symbols wider
+		than a byte are byte aligned and counted four to a word in a single table.
+
+		ByteBuffer buf - input starting on a symbol boundary
+		byte charwidth - symbol width in bits
+		long frequency[] - counts are added here
+
+		return frequency
+	*/
+	protected static long[] count(ByteBuffer buf, byte charwidth, long frequency[]) {
+		Metrics.Span span = Metrics.begin(Metrics.histogram);
+
+		tally(buf,charwidth,frequency);
+		span.end(buf.remaining(),0,((long)buf.remaining()*8+charwidth-1)/charwidth,1);
+		return frequency;
+	}
+
+	/* counts symbols in a buffer without timing */
+
+	private static long[] tally(ByteBuffer buf, byte charwidth, long frequency[]) {
+		ByteBuffer in = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int size = 1<<charwidth, mask = size-1, pos = in.position(), limit = in.limit(), regbits = 0;
+		int tab[] = new int[(charwidth > 8) ? size : 4*size];
+		long word, reg = 0;
+
+		for (; (charwidth > 8) && (pos+8 <= limit); pos += 8) {
+			word = in.getLong(pos);
+			tab[(int)word & mask]++;
+			tab[(int)(word >>> charwidth) & mask]++;
+			tab[(int)(word >>> 2*charwidth) & mask]++;
+			tab[(int)(word >>> 3*charwidth) & mask]++;
+		}
+
+		for (; (charwidth <= 8) && (pos+8 <= limit); pos += charwidth) {
+			word = in.getLong(pos);
+			tab[(int)word & mask]++;
+			tab[size+((int)(word >>> charwidth) & mask)]++;
+			tab[2*size+((int)(word >>> 2*charwidth) & mask)]++;
+			tab[3*size+((int)(word >>> 3*charwidth) & mask)]++;
+			tab[(int)(word >>> 4*charwidth) & mask]++;
+			tab[size+((int)(word >>> 5*charwidth) & mask)]++;
+			tab[2*size+((int)(word >>> 6*charwidth) & mask)]++;
+			tab[3*size+((int)(word >>> 7*charwidth) & mask)]++;
+		}
+
+		// counts tail a byte at a time, wide symbols taking two, the last symbol padded with zeros
+		for (long n=((long)(limit-pos)*8+charwidth-1)/charwidth; n > 0; n--) {
+			while (regbits < charwidth) {
+				if (pos < limit)
+					reg |= (long)(in.get(pos)&0xFF) << regbits;
+				pos++;
+				regbits += 8;
+			}
+			tab[(int)reg & mask]++;
+			reg >>>= charwidth;
+			regbits -= charwidth;
+		}
+
+		for (int i=0; i < tab.length; i++)
+			frequency[i & mask] += tab[i];
+		return frequency;
+	}
+
+	/*
+		Bytes of input in each slice, a whole number of symbol groups
+
+		byte charwidth - symbol width in bits
+
+		return slice size
+	*/
+	protected static long slice(byte charwidth) {
+		return slicesize-slicesize%charwidth;
+	}
+
+	/*
+		Counts symbols of whole file in parallel slices on the common ForkJoin
+		pool, for callers with no thread limit of their own
+
+		FileChannel file - input file
+		long size - size of input file
+		byte charwidth - symbol width in bits
+
+		return frequency of each symbol
+	*/
+	protected static long[] count(FileChannel file, long size, byte charwidth) throws IOException {
+		return count(file,size,charwidth,ForkJoinPool.commonPool());
+	}
+
+	/*
+		Counts symbols of whole file in parallel slices on a ForkJoin pool.  A file
+		of a single slice is counted on the calling thread.
+
+		FileChannel file - input file
+		long size - size of input file
+		byte charwidth - symbol width in bits
+		ForkJoinPool pool - pool counting slices, left running for the caller
+
+		return frequency of each symbol
+	*/
+	protected static long[] count(final FileChannel file, final long size, final byte charwidth, ForkJoinPool pool) throws IOException {
+		Metrics.Span span;
+		long frequency[] = new long[1<<charwidth];
+
+		// a file of one slice is counted on this thread rather than starting a pool
+		if (size <= slice(charwidth)) {
+			span = Metrics.begin(Metrics.histogram);
+			tally(file.map(FileChannel.MapMode.READ_ONLY,0,size),charwidth,frequency);
+			span.end(size,0,(size*8+charwidth-1)/charwidth,1);
+			return frequency;
+		}
+
+		return sum(countSlices(file,size,charwidth,pool));
+	}
+
+	/*
+		Merges counts from each slice
+
+		long parts[][] - frequency of each symbol in each slice
+
+		return frequency of each symbol
+	*/
+	protected static long[] sum(long parts[][]) {
+		long frequency[] = new long[parts[0].length];
+
+		for (int i=0; i < parts.length; i++)
+			for (int j=0; j < frequency.length; j++)
+				frequency[j] += parts[i][j];
+		return frequency;
+	}
+
+	/*
+		Counts symbols of each slice of a file separately on a ForkJoin pool.  The
+		last symbol of the last slice is padded with zeros.
+
+		FileChannel file - input file
+		long size - size of input file
+		byte charwidth - symbol width in bits
+		ForkJoinPool pool - pool counting slices, left running for the caller
+
+		return frequency of each symbol in each slice
+	*/
+	protected static long[][] countSlices(final FileChannel file, final long size, final byte charwidth, ForkJoinPool pool) throws IOException {
+		Metrics.Span span = Metrics.begin(Metrics.histogram);
+		final long slice = slice(charwidth);  // slices begin on symbol boundaries
+		ArrayList<ForkJoinTask<long[]>> tasks = new ArrayList<ForkJoinTask<long[]>>();
+		long parts[][];
+
+		for (long start=0; start < size; start += slice) {
+			final long offset = start;
+
+			tasks.add(pool.submit(new Callable<long[]>() {
+				public long[] call() throws IOException {
+					ByteBuffer buf = file.map(FileChannel.MapMode.READ_ONLY,offset,Math.min(slice,size-offset));
+
+					return tally(buf,charwidth,new long[1<<charwidth]);
+				}
+			}));
+		}
+
+		parts = new long[tasks.size()][];
+		for (int i=0; i < tasks.size(); i++)
+			parts[i] = tasks.get(i).join();
+		span.end(size,0,(size*8+charwidth-1)/charwidth,tasks.size());
+		return parts;
+	}
+
+	/*
+		Counts symbols over several files together, opening one at a time
+
+		List<String> names - files to count
+		byte charwidth - symbol width in bits
+
+		return combined frequency of each symbol
+	*/
+	protected static long[] count(List<String> names, byte charwidth) throws IOException {
+		long frequency[] = new long[1<<charwidth], part[];
+		FileChannel in;
+
+		for (String name : names) {
+			in = new FileInputStream(name).getChannel();
+			try {
+				part = count(in,in.size(),charwidth);
+			} finally {
+				in.close();
+			}
+			for (int i=0; i < frequency.length; i++)
+				frequency[i] += part[i];
+		}
+		return frequency;
+	}
+}
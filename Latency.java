@@ -0,0 +1,75 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Latency of recent requests and its percentiles.  The most recent
+	requests are kept in a ring so that percentiles follow current load
+	rather than everything since start up.
+ */
+
+import java.util.*;
+
+class Latency
+{
+	private static final double points[] = {50, 90, 99, 99.9};  // percentiles reported
+	private static final String labels[] = {"p50", "p90", "p99", "p99.9"};
+
+	private long times[];  // nanoseconds taken by recent requests, used as a ring
+	private long count;  // requests recorded since start up
+
+	/* Constructor */
+
+	protected Latency(int window) {
+		times = new long[window];
+	}
+
+	protected synchronized void record(long nanos) {
+		times[(int)(count++ % times.length)] = nanos;
+	}
+
+	/*
+		Percentiles of recent requests as a single line
+
+		return latency line
+	*/
+	public String toString() {
+		long sorted[], total;
+		StringBuilder line = new StringBuilder();
+
+		synchronized (this) {
+			total = count;
+			sorted = Arrays.copyOf(times,(int)Math.min(count,times.length));
+		}
+		line.append("Requests: ").append(total);
+		if (sorted.length == 0)
+			return line.toString();
+		Arrays.sort(sorted);
+		line.append(", latency of last ").append(sorted.length);
+		for (int i=0; i < points.length; i++)
+			line.append(' ').append(labels[i]).append(' ').append(millis(sorted[(int)Math.ceil(points[i]/100*sorted.length)-1]));
+		line.append(" max ").append(millis(sorted[sorted.length-1]));
+		return line.toString();
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.2f ms",nanos/1e6);
+	}
+}
@@ -0,0 +1,176 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Time, bytes and symbols spent in each phase of encoding and decoding.
+	Phases are timed as spans which are added to the totals for the process
+	and, when the puffman.jfr property is true and a Flight Recorder
+	recording is running, committed as PhaseEvents.  Spans nest, so encode and decode include the map, write
+	and crc time that happens within them.
+ */
+
+import java.util.*;
+
+class Metrics
+{
+	// phases
+	protected static final int map = 0;  // mapping a window of a file
+	protected static final int histogram = 1;  // counting symbol frequencies
+	protected static final int tree = 2;  // building a tree or its decoding tables
+	protected static final int table = 3;  // ranking a tree into the code table or back
+	protected static final int encode = 4;
+	protected static final int decode = 5;
+	protected static final int write = 6;  // writing output to a channel
+	protected static final int crc = 7;
+	private static final String names[] = {"map", "histogram", "tree", "table", "encode", "decode", "write", "crc"};
+
+	protected static final Metrics total = new Metrics();  // everything done by this process
+	private static final boolean flight = flightRecorder();
+
+	private long nanos[] = new long[names.length];
+	private long bytesin[] = new long[names.length];
+	private long bytesout[] = new long[names.length];
+	private long symbols[] = new long[names.length];
+	private long buffers[] = new long[names.length];  // windows, chunks or slices gone through
+	private long spans[] = new long[names.length];
+
+	/* One run of a phase */
+
+	protected static class Span
+	{
+		private int phase;
+		private long start;
+		private Object event;  // PhaseEvent or null without a recording
+
+		private Span(int phase) {
+			this.phase = phase;
+			if (flight && PhaseEvent.enabled())
+				event = PhaseEvent.started();
+			start = System.nanoTime();  // after the check so its cost is not charged to the phase
+		}
+
+		/*
+			Ends the span adding it to the totals
+
+			long in - bytes read
+			long out - bytes written
+			long syms - symbols encoded or decoded
+			long bufs - windows, chunks or slices gone through
+		*/
+		protected void end(long in, long out, long syms, long bufs) {
+			total.add(phase,System.nanoTime()-start,in,out,syms,bufs);
+			if (event != null)
+				PhaseEvent.ended(event,names[phase],in,out,syms,bufs);
+		}
+	}
+
+	/* starts timing a phase */
+
+	protected static Span begin(int phase) {
+		return new Span(phase);
+	}
+
+	/*
+		Adds a phase the caller timed in pieces too small for a span each,
+		with no Flight Recorder event
+
+		int phase - phase timed
+		long time - nanoseconds spent
+		long in - bytes read
+		long out - bytes written
+		long syms - symbols encoded or decoded
+		long bufs - windows, chunks or slices gone through
+	*/
+	protected static void record(int phase, long time, long in, long out, long syms, long bufs) {
+		total.add(phase,time,in,out,syms,bufs);
+	}
+
+	/*
+		Flight Recorder events are only asked for with -Dpuffman.jfr=true, since
+		touching the jdk.jfr module at all costs every run a few hundred ms of
+		start up.  They also need that module, which a runtime may be built
+		without.
+	*/
+	private static boolean flightRecorder() {
+		if (!Boolean.getBoolean("puffman.jfr"))
+			return false;
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	/* forgets everything recorded so far */
+
+	protected synchronized void clear() {
+		Arrays.fill(nanos,0);
+		Arrays.fill(bytesin,0);
+		Arrays.fill(bytesout,0);
+		Arrays.fill(symbols,0);
+		Arrays.fill(buffers,0);
+		Arrays.fill(spans,0);
+	}
+
+	private synchronized void add(int phase, long time, long in, long out, long syms, long bufs) {
+		nanos[phase] += time;
+		bytesin[phase] += in;
+		bytesout[phase] += out;
+		symbols[phase] += syms;
+		buffers[phase] += bufs;
+		spans[phase]++;
+	}
+
+	/*
+		Summary of every phase that has run, as a single line
+
+		return stats line
+	*/
+	public synchronized String toString() {
+		StringBuilder line = new StringBuilder("Stats:");
+		String sep = " ";
+
+		for (int p=0; p < names.length; p++) {
+			if (spans[p] == 0)
+				continue;
+			line.append(sep).append(names[p]).append(' ').append(nanos[p]/1000000).append(" ms");
+			if (bytesin[p] > 0)
+				line.append(' ').append(amount(bytesin[p])).append(" in");
+			if (bytesout[p] > 0)
+				line.append(' ').append(amount(bytesout[p])).append(" out");
+			if ((nanos[p] > 0) && (Math.max(bytesin[p],bytesout[p]) >= 1<<20))
+				line.append(' ').append(String.format("%.1f",Math.max(bytesin[p],bytesout[p])*1000000000.0/nanos[p]/(1<<20))).append(" MB/s");
+			if (symbols[p] > 0)
+				line.append(' ').append(symbols[p]).append(" symbols");
+			if (buffers[p] > 0)
+				line.append(' ').append(buffers[p]).append(" buffers");
+			sep = "; ";
+		}
+		return line.toString();
+	}
+
+	private static String amount(long bytes) {
+		if (bytes < 1<<20)
+			return String.format("%.1f KB",bytes/1024.0);
+		return String.format("%.1f MB",bytes/(double)(1<<20));
+	}
+}
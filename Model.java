@@ -0,0 +1,223 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Reusable model trained once over sample files.  A model is the tree id and
+	content table exactly as written in a file header, followed by the symbol
+	counts it was trained on so that a freshly biased tree can still be drawn
+	for each file.  Encoding against a model skips the histogram pass, so
+	input is read once.  Loaded models are kept in a small LRU cache keyed by
+	file name.
+
+	Model file
+		"PUFM" signature
+		charwidth byte
+		code table as in a file header but not encrypted
+		frequency of each symbol as a long
+		longest code a fresh tree may have as a byte, 32 when missing
+ */
+
+import java.io.*;
+import java.util.*;
+import bitfuns.*;
+
+public class Model
+{
+	private static final String signature = "PUFM";
+	private static final int cachesize = 16;  // models kept loaded at once
+
+	// loaded models by file name, least recently used first
+	private static final Map<String,Model> cache = new LinkedHashMap<String,Model>(cachesize,0.75f,true) {
+		protected boolean removeEldestEntry(Map.Entry<String,Model> eldest) {
+			return size() > cachesize;
+		}
+	};
+
+	private byte charwidth;
+	private long frequency[];  // counts model was trained on
+	private int lens[];
+	private long codes[];
+	private BitSet table;  // code table written to file header
+	private int tablen[] = new int[2];
+	private int maxlength = Canonical.maxlength;  // longest code a fresh tree may have
+
+	/* Constructors bias the counts into a new tree */
+
+	protected Model(long frequency[], byte charwidth) {
+		this(frequency,charwidth,Canonical.maxlength);
+	}
+
+	protected Model(long frequency[], byte charwidth, int maxlength) {
+		this(frequency,Canonical.lengths(Puffman.bias(frequency),maxlength),charwidth);
+		this.maxlength = maxlength;
+	}
+
+	private Model(long frequency[], int lens[], byte charwidth) {
+		this.frequency = frequency;
+		this.lens = lens;
+		this.charwidth = charwidth;
+		codes = Canonical.codes(lens);
+		table = Puffman.codeTable(Canonical.tree(lens),tablen,charwidth);
+	}
+
+	/* Accessors */
+
+	public byte getCharwidth() {
+		return charwidth;
+	}
+
+	protected int[] getLens() {
+		return lens;
+	}
+
+	protected long[] getCodes() {
+		return codes;
+	}
+
+	protected BitSet getTable() {
+		return table;
+	}
+
+	protected int getTableBits() {
+		return tablen[0]+tablen[1];
+	}
+
+	/*
+		Draws another tree from the same counts with a fresh bias
+
+		return new model
+	*/
+	public Model rebias() {
+		return new Model(frequency,charwidth,maxlength);
+	}
+
+	/*
+		Trains a model over several files counted together
+
+		List<String> names - sample files
+		byte charwidth - symbol width in bits
+
+		return model
+	*/
+	public static Model train(List<String> names, byte charwidth) throws IOException {
+		return train(names,charwidth,Canonical.maxlength);
+	}
+
+	/*
+		Trains a model whose codes are no longer than a limit
+
+		List<String> names - sample files
+		byte charwidth - symbol width in bits
+		int maxlength - longest code allowed
+
+		return model
+	*/
+	public static Model train(List<String> names, byte charwidth, int maxlength) throws IOException {
+		if ((charwidth != 7) && (charwidth != 8) && (charwidth != 16))
+			throw new IllegalArgumentException("Symbol width must be 7, 8 or 16 bits");
+		return new Model(Histogram.count(names,charwidth),charwidth,maxlength);
+	}
+
+	/*
+		Writes model to a file
+
+		String name - model file
+	*/
+	public void save(String name) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(name)));
+
+		try {
+			out.write(signature.getBytes());
+			out.writeByte(charwidth);
+			out.write(Bitfun.toByteArray(table,new byte[(Node.tableBits(charwidth)+7)/8]));
+			for (int i=0; i < frequency.length; i++)
+				out.writeLong(frequency[i]);
+			out.writeByte(maxlength);
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+		Reads a model from a file.  Codes are assigned canonically from the code
+		lengths of the stored tree.  Models saved before the length limit was
+		stored keep the default limit.
+
+		String name - model file
+
+		return model
+	*/
+	public static Model load(String name) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(name)));
+		byte sig[] = new byte[signature.length()], dat[], charwidth;
+		long frequency[];
+		int maxlength;
+		Model model;
+		Node tree;
+
+		try {
+			in.readFully(sig);
+			if (!new String(sig).equals(signature))
+				throw new IOException(name+" is not a model");
+			charwidth = in.readByte();
+			if ((charwidth != 7) && (charwidth != 8) && (charwidth != 16))
+				throw new IOException(name+" has unsupported symbol width "+charwidth);
+			dat = new byte[(Node.tableBits(charwidth)+7)/8];
+			in.readFully(dat);
+			frequency = new long[1<<charwidth];
+			for (int i=0; i < frequency.length; i++)
+				frequency[i] = in.readLong();
+			maxlength = in.read();
+			if (maxlength < 0)
+				maxlength = Canonical.maxlength;
+			else if ((maxlength < charwidth) || (maxlength > 64))
+				throw new IOException(name+" has unsupported code length limit "+maxlength);
+		} finally {
+			in.close();
+		}
+		tree = Depuff.readTree(dat,new byte[0],charwidth,null);
+		model = new Model(frequency,Canonical.lengths(tree,charwidth),charwidth);
+		model.maxlength = maxlength;
+		return model;
+	}
+
+	/*
+		Gets a model from the cache, loading it on first use or when it has
+		been pushed out by more recently used models
+
+		String name - model file
+
+		return model
+	*/
+	public static Model get(String name) throws IOException {
+		String path = new File(name).getCanonicalPath();
+		Model model;
+
+		synchronized (cache) {
+			model = cache.get(path);
+			if (model == null) {
+				model = load(path);
+				cache.put(path,model);
+			}
+		}
+		return model;
+	}
+}
@@ -29,8 +29,10 @@ import java.util.*;
 import java.math.*;
 import bitfuns.*;
 
-class Node implements Comparable
+class Node implements Comparable<Node>
 {
+	protected static final byte maxranked = 7;  // widest alphabet whose trees are described by rank
+
 	private BitSet 	content;  // symbol node represents
 	private int	value;  // used in statistical model
 	private Node 	left;
@@ -66,10 +68,8 @@ class Node implements Comparable
 
 	/* Compare To function */
 
-	public int compareTo(Object arg)
+	public int compareTo(Node other)
 	{
-		Node other = (Node) arg;
-
 		// Content value has priority and then the lowest character
 		if (this.value == other.value)
 			return Bitfun.toByteArray(this.content)[0]-Bitfun.toByteArray(other.content)[0];
@@ -107,17 +107,46 @@ class Node implements Comparable
 
 	/* Tree enumeration functions */
 
-	private static BigInteger factorial(int x) {
-		BigInteger n = BigInteger.ONE;
-	        for (int i=1; i<=x; i++) {
-        		n = n.multiply(BigInteger.valueOf(i));
-	        }
+	private static BigInteger catalans[] = {BigInteger.ONE};  // cached Catalan numbers
+	private static BigInteger splits[][] = new BigInteger[0][];  // cached cumulative counts by root split
+
+	/* returns table of at least x+1 Catalan numbers extending it by C(n) = C(n-1)*2(2n-1)/(n+1) */
 
-		return n;
+	private static synchronized BigInteger[] catalans(int x) {
+		BigInteger grown[];
+
+		if (x >= catalans.length) {
+			grown = Arrays.copyOf(catalans,Math.max(x+1,2*catalans.length));
+			for (int n=catalans.length; n < grown.length; n++)
+				grown[n] = grown[n-1].multiply(BigInteger.valueOf(2*(2*n-1))).divide(BigInteger.valueOf(n+1));
+			catalans = grown;
+		}
+		return catalans;
 	}
 
 	private static BigInteger catalan(int x) {
-		return factorial(2*x).divide(factorial(x+1).multiply(factorial(x)));
+		return catalans(x)[x];
+	}
+
+	/*
+		Returns cumulative counts of trees whose root has total internal nodes below it
+		so that entry i counts the trees with fewer than i nodes on the left
+
+		int total - internal nodes below root
+	*/
+	private static synchronized BigInteger[] splits(int total) {
+		BigInteger cat[] = catalans(total), row[];
+
+		if (total >= splits.length)
+			splits = Arrays.copyOf(splits,Math.max(total+1,2*splits.length));
+		if (splits[total] == null) {
+			row = new BigInteger[total+2];
+			row[0] = BigInteger.ZERO;
+			for (int i=0; i <= total; i++)
+				row[i+1] = row[i].add(cat[i].multiply(cat[total-i]));
+			splits[total] = row;
+		}
+		return splits[total];
 	}
 
 	protected int nodeCount() {
@@ -145,67 +174,142 @@ class Node implements Comparable
 		return catalan(nodes);
 	}
 
-	protected BigInteger getTreeNumber() {
-		BigInteger treeid = BigInteger.ZERO, leftid, rightid;
-		int leftnodes, rightnodes, totalnodes;
+	/*
+		Bits describing the shape of a tree over an alphabet.  Trees over up to
+		maxranked bits are numbered among all trees of their size.  Wider
+		alphabets have too many trees to number quickly so their shape is
+		written in preorder with one bit per node.
 
-		// recurses through branches to pinpoint minor part of tree number
-		if (left != null) {
-			leftnodes = left.nodeCount();
-			leftid = left.getTreeNumber();
-		}
-		else {
-			leftnodes = 0;
-			leftid = BigInteger.ZERO;
-		}
-		if (right != null) {
-			rightnodes = right.nodeCount();
-			rightid = right.getTreeNumber();
-		}
-		else {
-			rightnodes = 0;
-			rightid = BigInteger.ZERO;
+		byte charwidth - symbol width in bits
+
+		return number of bits
+	*/
+	protected static int idBits(byte charwidth) {
+		int nodes = (1<<charwidth)-1;
+
+		return (charwidth <= maxranked) ? maxTrees(nodes).bitLength() : 2*nodes+1;
+	}
+
+	/* Bits of code table ahead of content, the tree description then each leaf in order */
+
+	protected static int tableBits(byte charwidth) {
+		return idBits(charwidth)+(1<<charwidth)*charwidth;
+	}
+
+	/* returns shape of tree in preorder, 1 for a branch and 0 for a leaf */
+
+	protected BitSet getShape() {
+		ArrayList<Node> stack = new ArrayList<Node>();
+		BitSet shape = new BitSet();
+		Node dex;
+		int bit = 0;
+
+		stack.add(this);
+		while (!stack.isEmpty()) {
+			dex = stack.remove(stack.size()-1);
+			if ((dex.left != null) && (dex.right != null)) {
+				shape.set(bit);
+				stack.add(dex.right);
+				stack.add(dex.left);
+			}
+			bit++;
 		}
-		totalnodes = leftnodes + rightnodes;
+		return shape;
+	}
 
-		// this is the calculation for the Tree ID
-		treeid = leftid.multiply(catalan(rightnodes)).add(rightid);
+	/*
+		Rebuilds tree from shape written by getShape
+
+		BitSet shape - shape in preorder
+		int totalnodes - number of branches in tree
+	*/
+	protected void buildShape(BitSet shape, int totalnodes) {
+		ArrayList<Node> stack = new ArrayList<Node>();
+		Node dex;
+		int bit = 0, branches = 0;
+
+		stack.add(this);
+		while (!stack.isEmpty()) {
+			dex = stack.remove(stack.size()-1);
+			// a damaged shape cannot grow the tree past its size
+			if (shape.get(bit++) && (branches++ < totalnodes)) {
+				dex.left = new Node(new BitSet(),0);
+				dex.right = new Node(new BitSet(),0);
+				stack.add(dex.right);
+				stack.add(dex.left);
+			}
+		}
+	}
 
-		// calculates the major part of the tree number based on the known number of nodes on the left and right
-		for (int i=0; i < leftnodes; i++) {
-			treeid = treeid.add(catalan(i).multiply(catalan(totalnodes-i)));
+	protected BigInteger getTreeNumber() {
+		int nodes = 2*nodeCount()+1, child[] = new int[2*nodes], symbol[] = new int[nodes], count[] = new int[nodes];
+		int leftnode, rightnode;
+		BigInteger treeid[] = new BigInteger[nodes], cat[] = catalans(nodes);
+
+		// children always follow their parent so subtree sizes and ids are found in one backward pass
+		flatten(child,symbol);
+		for (int i=nodes-1; i >= 0; i--) {
+			if (symbol[i] >= 0) {
+				treeid[i] = BigInteger.ZERO;
+				continue;
+			}
+			leftnode = child[2*i];
+			rightnode = child[2*i+1];
+			count[i] = 1+count[leftnode]+count[rightnode];
+
+			// minor part from the branches and major part from the number of nodes on the left
+			treeid[i] = treeid[leftnode].multiply(cat[count[rightnode]]).add(treeid[rightnode]).add(splits(count[i]-1)[count[leftnode]]);
 		}
 
-		return treeid;
+		return treeid[0];
 	}
 
 	protected void buildTree(BigInteger treeid, int totalnodes) {
-		BigInteger childid[], number=BigInteger.ZERO, newnumber=BigInteger.ZERO;
-		int leftnodes=0, rightnodes;
-
-		// based on tree number passed, pinpoints number of nodes on left and right
-		for (int i=0; newnumber.compareTo(treeid) <= 0; i++) {
-			number = newnumber;
-			newnumber = number.add(catalan(i).multiply(catalan(totalnodes-i-1)));
-			leftnodes = i;
+		Node stack[] = new Node[totalnodes+1], dex;
+		BigInteger ids[] = new BigInteger[totalnodes+1], childid[], cat[] = catalans(totalnodes), row[], id;
+		int counts[] = new int[totalnodes+1], top = 0, leftnodes, rightnodes, low, high, mid;
+
+		if (totalnodes == 0)
+			return;
+
+		stack[top] = this;
+		ids[top] = treeid;
+		counts[top++] = totalnodes;
+		while (top > 0) {
+			dex = stack[--top];
+			id = ids[top];
+			row = splits(counts[top]-1);
+
+			// based on tree number passed, pinpoints number of nodes on left and right
+			low = 0;
+			high = counts[top]-1;
+			while (low < high) {
+				mid = (low+high+1)>>>1;
+				if (row[mid].compareTo(id) <= 0)
+					low = mid;
+				else
+					high = mid-1;
+			}
+			leftnodes = low;
+			rightnodes = counts[top]-leftnodes-1;
+
+			// this breaks it down by subtracting the number derived above then finds 
+			// the left and right id which are in index 0 and 1 respectively
+			childid = id.subtract(row[leftnodes]).divideAndRemainder(cat[rightnodes]);
+
+			dex.left = new Node(new BitSet(),0);
+			dex.right = new Node(new BitSet(),0);
+			if (leftnodes > 0) {
+				stack[top] = dex.left;
+				ids[top] = childid[0];
+				counts[top++] = leftnodes;
+			}
+			if (rightnodes > 0) {
+				stack[top] = dex.right;
+				ids[top] = childid[1];
+				counts[top++] = rightnodes;
+			}
 		}
-		rightnodes = totalnodes - leftnodes -1;
-
-		// this breaks it down by subtracting the number derived above then finds 
-		// the left and right id which are in index 0 and 1 respectively
-		childid = treeid.subtract(number).divideAndRemainder(catalan(rightnodes));
-
-		if (leftnodes > 0) {
-			left = new Node(new BitSet(),0);
-			left.buildTree(childid[0],leftnodes);
-		} else
-			left = new Node(new BitSet(),0);
-
-		if (rightnodes > 0) {
-			right = new Node(new BitSet(),0);
-			right.buildTree(childid[1],rightnodes);
-		} else
-			right = new Node(new BitSet(),0);
 	}
 
 	/* Traverse tree to get order of content - traversal order doesn't matter as long as it consistent */
@@ -270,4 +374,26 @@ class Node implements Comparable
 
 		return index;
 	}
+
+	/* flatten tree into arrays for table driven decoding - root is node 0 */
+
+	private int flatten(int node, int next, int child[], int symbol[]) {
+		long word[];
+
+		if ((left==null) || (right==null)) {
+			word = (content == null) ? new long[0] : content.toLongArray();
+			symbol[node] = (word.length == 0) ? 0 : (int)word[0];
+			return next;
+		}
+
+		symbol[node] = -1;
+		child[2*node] = next;
+		child[2*node+1] = next+1;
+		next = left.flatten(next,next+2,child,symbol);
+		return right.flatten(child[2*node+1],next,child,symbol);
+	}
+
+	protected void flatten(int child[], int symbol[]) {
+		this.flatten(0,1,child,symbol);
+	}
 }
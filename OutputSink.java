@@ -0,0 +1,190 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Receives decoded output a buffer at a time and keeps a running crc.
+	Output is either written to a channel in fixed slices, so memory use
+	does not grow with the size of the file, or mapped a window at a time.
+	Given a spare slice, the crc and write of each slice happen on a writer
+	thread while the next slice is filled.
+ */
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import bitfuns.*;
+
+class OutputSink implements BufferSink
+{
+	protected static final int defaultslice = 1<<20;  // bytes written to a channel at once
+
+	private WritableByteChannel channel;  // channel written to or null when mapping
+	private FileChannel file;  // channel written at positions or null when writing in sequence
+	private long position;  // file position of next slice
+	private ByteBuffer slice;  // reusable buffer for channel output
+	private ByteBuffer spare;  // second buffer being written or null when writing in place
+	private ExecutorService writer;  // writes slices while the next is filled
+	private Future<Void> pending;  // write of spare in progress
+	private Window window;  // windows of mapped output
+	private CRC32 crc = new CRC32();
+
+	/* Constructors */
+
+	// writes slices in sequence at the current position of the channel
+	protected OutputSink(WritableByteChannel channel, ByteBuffer slice) {
+		this.channel = channel;
+		this.slice = slice;
+	}
+
+	// writes slices at positions from the given one on so several sinks can share a file
+	protected OutputSink(FileChannel channel, long position, ByteBuffer slice) {
+		this(channel,slice);
+		this.file = channel;
+		this.position = position;
+	}
+
+	// writes each slice on a writer thread while the other is filled
+	protected OutputSink(FileChannel channel, long position, ByteBuffer slice, ByteBuffer spare) {
+		this(channel,position,slice);
+		this.spare = spare;
+		writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r,"OutputSink writer");
+
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	protected OutputSink(Window window) {
+		this.window = window;
+	}
+
+	/*
+		Supplies the first buffer to fill
+
+		return buffer
+	*/
+	protected ByteBuffer first() throws IOException {
+		ByteBuffer buf;
+
+		if (channel != null) {
+			slice.clear();
+			return slice;
+		}
+		buf = window.next();
+		return (buf == null) ? ByteBuffer.allocate(0) : buf;
+	}
+
+	/*
+		Takes a filled buffer and supplies the next
+
+		ByteBuffer full - filled buffer flipped for reading
+
+		return next buffer to fill or null once mapped output is exhausted
+	*/
+	public ByteBuffer next(final ByteBuffer full) throws IOException {
+		ByteBuffer free;
+
+		if (channel == null) {
+			update(full);
+			return window.next();
+		}
+		if (writer == null) {
+			write(full);
+			full.clear();
+			return full;
+		}
+
+		// spare is free again once its write completes
+		await();
+		free = spare;
+		spare = full;
+		pending = writer.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				write(full);
+				return null;
+			}
+		});
+		free.clear();
+		return free;
+	}
+
+	/* adds slice to crc and writes it at the current position */
+
+	private void write(ByteBuffer full) throws IOException {
+		Metrics.Span span;
+		int size = full.remaining();
+
+		update(full);
+		span = Metrics.begin(Metrics.write);
+		while (full.hasRemaining())
+			if (file != null)
+				position += file.write(full,position);
+			else
+				channel.write(full);
+		span.end(0,size,0,1);
+	}
+
+	private void update(ByteBuffer full) {
+		Metrics.Span span = Metrics.begin(Metrics.crc);
+
+		crc.update(full.duplicate());
+		span.end(full.remaining(),0,0,1);
+	}
+
+	/* waits for the write in progress */
+
+	private void await() throws IOException {
+		if (pending == null)
+			return;
+		try {
+			pending.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+		pending = null;
+	}
+
+	/*
+		Waits for outstanding output and stops the writer thread
+	*/
+	protected void close() throws IOException {
+		try {
+			await();
+		} finally {
+			if (writer != null)
+				writer.shutdown();
+		}
+	}
+
+	protected int getCrc() {
+		return (int)crc.getValue();
+	}
+}
@@ -0,0 +1,90 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Flight Recorder event for one phase of encoding or decoding.  Only
+	Metrics refers to this class, and only when the puffman.jfr property is
+	true and the jdk.jfr package is present, so other runs never load it.
+ */
+
+import jdk.jfr.*;
+
+@Name("puffman.Phase")
+@Label("Puffman Phase")
+@Category("Puffman")
+@Description("One phase of encoding or decoding a file")
+@StackTrace(false)
+class PhaseEvent extends Event
+{
+	private static volatile EventType type;  // looked up once a recording has started Flight Recorder
+
+	@Label("Phase")
+	private String phase;
+
+	@Label("Bytes In")
+	@DataAmount
+	private long bytesIn;
+
+	@Label("Bytes Out")
+	@DataAmount
+	private long bytesOut;
+
+	@Label("Symbols")
+	private long symbols;
+
+	@Label("Buffers")
+	@Description("Windows, chunks or slices gone through")
+	private long buffers;
+
+	/*
+		Whether a recording wants these events, checked before one is allocated.
+		The event type is not looked up until Flight Recorder is running, since
+		looking it up starts Flight Recorder.
+	*/
+	protected static boolean enabled() {
+		if (!FlightRecorder.isInitialized())
+			return false;
+		if (type == null)
+			type = EventType.getEventType(PhaseEvent.class);
+		return type.isEnabled();
+	}
+
+	protected static Object started() {
+		PhaseEvent e = new PhaseEvent();
+
+		e.begin();
+		return e;
+	}
+
+	protected static void ended(Object event, String phase, long in, long out, long syms, long bufs) {
+		PhaseEvent e = (PhaseEvent)event;
+
+		e.end();
+		if (!e.shouldCommit())
+			return;
+		e.phase = phase;
+		e.bytesIn = in;
+		e.bytesOut = out;
+		e.symbols = syms;
+		e.buffers = bufs;
+		e.commit();
+	}
+}
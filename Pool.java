@@ -0,0 +1,76 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Fixed size pool of reusable buffers.  Buffers are created on demand up
+	to the size of the pool after which takers wait for one to be given back.
+ */
+
+import java.util.concurrent.*;
+
+abstract class Pool<T>
+{
+	private BlockingQueue<T> free;
+	private int size;  // most buffers that may exist
+	private int created;  // buffers created so far
+
+	/* Constructor */
+
+	protected Pool(int size) {
+		this.size = size;
+		free = new ArrayBlockingQueue<T>(size);
+	}
+
+	// creates a new buffer when the pool is not yet full
+	protected abstract T create();
+
+	/*
+		Takes a buffer waiting for one to be given back if all are in use
+
+		return buffer
+	*/
+	protected T take() throws InterruptedException {
+		T buf = free.poll();
+
+		if (buf != null)
+			return buf;
+		synchronized (this) {
+			if (created < size) {
+				created++;
+				return create();
+			}
+		}
+		return free.take();
+	}
+
+	/*
+		Gives a buffer back to the pool
+
+		T buf - buffer taken earlier
+	*/
+	protected void give(T buf) {
+		free.offer(buf);
+	}
+
+	protected int getSize() {
+		return size;
+	}
+}
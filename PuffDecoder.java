@@ -0,0 +1,205 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Library entry point for decrypting in process.  A decoder holds its key
+	and a pool of working buffers, so one instance can be shared between
+	threads and reused for any number of calls without launching Depuff.
+	Input is read and output written a slice at a time so memory use does
+	not depend on the size of the file.  Blocked files are decoded in order.
+	Adaptive streams are decoded a segment at a time.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import bitfuns.*;
+
+public class PuffDecoder
+{
+	private static final int slicesize = 1<<16;  // bytes read or written at once
+	private static final int maxheader = 23;  // bytes in the longest file header
+
+	private byte kdat[];  // key data
+	private Pool<Context> contexts;  // working buffers of calls in progress
+
+	/* Buffers a call works in, kept between calls */
+
+	private static class Context
+	{
+		private ByteBuffer in = ByteBuffer.allocate(slicesize);
+		private ByteBuffer out = ByteBuffer.allocate(slicesize);
+	}
+
+	/* Constructors */
+
+	public PuffDecoder(byte key[]) {
+		this(key,Runtime.getRuntime().availableProcessors());
+	}
+
+	// calls beyond the given number at once wait for a free set of buffers
+	public PuffDecoder(byte key[], int threads) {
+		kdat = key.clone();
+		contexts = new Pool<Context>(Math.max(1,threads)) {
+			protected Context create() {
+				return new Context();
+			}
+		};
+	}
+
+	/*
+		Decrypts a stream.  The output is complete before the crc can be checked
+		so it should be discarded if this throws.
+
+		InputStream in - encrypted stream
+		OutputStream out - receives plain stream
+
+		return number of plain bytes written
+	*/
+	public long decode(InputStream in, OutputStream out) throws IOException {
+		return decode(Channels.newChannel(in),Channels.newChannel(out));
+	}
+
+	/*
+		Decrypts a channel.  The output is complete before the crc can be checked
+		so it should be discarded if this throws.
+
+		ReadableByteChannel in - encrypted channel
+		WritableByteChannel out - receives plain channel
+
+		return number of plain bytes written
+	*/
+	public long decode(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		Context ctx = take();
+		ChannelSource source;
+		Header header;
+
+		try {
+			source = new ChannelSource(in,ctx.in);
+			try {
+				header = Header.read(source.fill(maxheader));
+			} catch (BufferUnderflowException e) {
+				header = null;
+			}
+			if (header == null)
+				throw new IOException("Invalid file signature.");
+
+			if (header.isStreamed())
+				return Adaptive.decode(source,out,kdat,header.getCharwidth(),ctx.out);
+			if (header.getBlocksize() > 0)
+				decodeBlocks(source,out,header,ctx);
+			else if (decode(source,out,header.getCharwidth(),header.getLength(),header.isKeyed() ? new Keystream(kdat) : null,header.isCompact(),ctx) != header.getCrc())
+				throw new IOException("CRC mismatch - confirm encryption key");
+			return header.getLength();
+		} finally {
+			contexts.give(ctx);
+		}
+	}
+
+	/*
+		Decrypts an array
+
+		byte cipher[] - encrypted data
+
+		return plain data
+	*/
+	public byte[] decode(byte cipher[]) throws IOException {
+		ByteArrayOutputStream plain = new ByteArrayOutputStream(2*cipher.length);
+
+		decode(new ByteArrayInputStream(cipher),plain);
+		return plain.toByteArray();
+	}
+
+	/*
+		Decodes one stream of code table and content
+
+		ChannelSource source - encrypted input positioned after any header
+		WritableByteChannel out - receives plain stream
+		byte charwidth - word size of plain stream
+		long size - size of plain stream
+		Keystream keys - keystream over the stream or null
+		boolean compact - whether the code table holds code lengths
+		Context ctx - working buffers
+
+		return crc of plain stream
+	*/
+	private int decode(ChannelSource source, WritableByteChannel out, byte charwidth, long size, Keystream keys, boolean compact, Context ctx) throws IOException {
+		byte dat[] = new byte[Depuff.headSize(kdat,charwidth,compact)];
+		int n, tablebits[] = new int[1];
+		Node tree;
+
+		// short streams end inside the space set aside for the key
+		n = source.get(dat);
+		if (n < dat.length)
+			dat = Arrays.copyOf(dat,n);
+		tree = Depuff.readTable(dat,kdat,charwidth,keys,compact,tablebits);
+		return new TableDecoder(tree,charwidth).decode(ByteBuffer.wrap(dat),source,new OutputSink(out,ctx.out),tablebits[0],size,keys);
+	}
+
+	/* decodes blocks in order checking the index and each block against its crc */
+
+	private void decodeBlocks(ChannelSource source, WritableByteChannel out, Header header, Context ctx) throws IOException {
+		ByteBuffer index = ByteBuffer.allocate(header.getBlocks()*8);
+		CRC32 crc = new CRC32();
+		boolean match = true;
+		long outpos = 0;
+		int size, length, blockcrc;
+		byte dat[];
+
+		if (source.get(index.array()) < index.capacity())
+			throw new EOFException();
+		crc.update(index.array());
+		if ((int)crc.getValue() != header.getCrc())
+			throw new IOException("Block index is damaged");
+
+		for (int b=0; b < header.getBlocks(); b++) {
+			length = index.getInt();
+			blockcrc = index.getInt();
+			size = (int)Math.min(header.getBlocksize(),header.getLength()-outpos);
+			source.region(length);
+			if (header.getStreams() > 0) {
+				// interleaved streams are read whole to give each its own reader
+				dat = new byte[length];
+				if (source.get(dat) < length)
+					throw new EOFException();
+				if (Depuff.decodeStreams(dat,kdat,header.getCharwidth(),header.getStreams(),header.isCompact(),new OutputSink(out,ctx.out),size) != blockcrc)
+					match = false;
+			} else if (decode(source,out,header.getCharwidth(),size,null,header.isCompact(),ctx) != blockcrc)
+				match = false;
+			outpos += size;
+		}
+		if (!match)
+			throw new IOException("CRC mismatch - confirm encryption key");
+	}
+
+	private Context take() throws IOException {
+		try {
+			return contexts.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+}
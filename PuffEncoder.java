@@ -0,0 +1,236 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Library entry point for encrypting in process.  An encoder holds its key
+	and a pool of working buffers, so one instance can be shared between
+	threads and reused for any number of calls without launching Puffman.
+	Stream input is read whole before encoding since the model is built from
+	the entire input, while a file channel at its start is mapped instead.
+	An encoder given a trained model skips counting and reads input once.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import bitfuns.*;
+
+public class PuffEncoder
+{
+	private static final int initialsize = 1<<16;  // bytes first set aside for stream input
+	private static final int mapsize = 1<<20;  // files smaller than this are read rather than mapped
+
+	private byte kdat[];  // key data
+	private boolean keystream;  // whether a keystream covers the whole stream
+	private byte charwidth;  // symbol width in bits
+	private Model model;  // trained model or null to count each input
+	private boolean bias;  // whether each input draws a fresh tree from the model
+	private Pool<Context> contexts;  // working buffers of calls in progress
+
+	/* Buffers a call works in, kept between calls */
+
+	private static class Context
+	{
+		private ByteBuffer plain = ByteBuffer.allocate(initialsize);  // stream input read whole
+		private ByteBuffer scratch = ByteBuffer.allocate(Puffman.outbufsize);  // output packed here
+		private long frequency[];
+
+		private Context(byte charwidth) {
+			frequency = new long[1<<charwidth];
+		}
+	}
+
+	/* Constructors */
+
+	public PuffEncoder(byte key[]) {
+		this(key,Runtime.getRuntime().availableProcessors());
+	}
+
+	// calls beyond the given number at once wait for a free set of buffers
+	public PuffEncoder(byte key[], int threads) {
+		this(key,threads,false);
+	}
+
+	// optionally applies a keystream derived from the key over the whole stream
+	public PuffEncoder(byte key[], int threads, boolean keystream) {
+		this(key,threads,keystream,Puffman.charwidth);
+	}
+
+	// symbols may be 7, 8 or 16 bits wide
+	public PuffEncoder(byte key[], int threads, boolean keystream, int charwidth) {
+		this(key,threads,keystream,charwidth,null,false);
+	}
+
+	// encodes against a trained model, optionally biasing a new tree from it for each input
+	public PuffEncoder(byte key[], int threads, boolean keystream, Model model, boolean bias) {
+		this(key,threads,keystream,model.getCharwidth(),model,bias);
+	}
+
+	private PuffEncoder(byte key[], int threads, boolean keystream, int charwidth, Model model, boolean bias) {
+		if ((charwidth != 7) && (charwidth != 8) && (charwidth != 16))
+			throw new IllegalArgumentException("Symbol width must be 7, 8 or 16 bits");
+		this.keystream = keystream;
+		this.charwidth = (byte)charwidth;
+		this.model = model;
+		this.bias = bias;
+		kdat = key.clone();
+		contexts = new Pool<Context>(Math.max(1,threads)) {
+			protected Context create() {
+				return new Context(PuffEncoder.this.charwidth);
+			}
+		};
+	}
+
+	/*
+		Encrypts a stream
+
+		InputStream in - plain stream read to its end
+		OutputStream out - receives encrypted stream
+
+		return number of plain bytes encrypted
+	*/
+	public long encode(InputStream in, OutputStream out) throws IOException {
+		return encode(Channels.newChannel(in),Channels.newChannel(out));
+	}
+
+	/*
+		Encrypts a channel
+
+		ReadableByteChannel in - plain channel read to its end
+		WritableByteChannel out - receives encrypted stream
+
+		return number of plain bytes encrypted
+	*/
+	public long encode(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		Context ctx = take();
+
+		try {
+			if ((in instanceof FileChannel) && (((FileChannel)in).position() == 0) && (((FileChannel)in).size() >= mapsize))
+				return encode((FileChannel)in,out,ctx);
+			return encode(read(in,ctx),out,ctx);
+		} finally {
+			contexts.give(ctx);
+		}
+	}
+
+	/*
+		Encrypts an array
+
+		byte plain[] - plain data
+
+		return encrypted data
+	*/
+	public byte[] encode(byte plain[]) throws IOException {
+		ByteArrayOutputStream cipher = new ByteArrayOutputStream(plain.length+initialsize);
+		Context ctx = take();
+
+		try {
+			encode(ByteBuffer.wrap(plain),Channels.newChannel(cipher),ctx);
+		} finally {
+			contexts.give(ctx);
+		}
+		return cipher.toByteArray();
+	}
+
+	/* encrypts a buffer holding the whole input */
+
+	private long encode(ByteBuffer plain, WritableByteChannel out, Context ctx) throws IOException {
+		CRC32 crc = new CRC32();
+
+		crc.update(plain.duplicate());
+		if (model != null)
+			return encode(bias ? model.rebias() : model,(int)crc.getValue(),plain.remaining(),new Window(plain),out,ctx);
+		Arrays.fill(ctx.frequency,0);
+		Histogram.count(plain,charwidth,ctx.frequency);
+		return encode(new Model(ctx.frequency,charwidth),(int)crc.getValue(),plain.remaining(),new Window(plain),out,ctx);
+	}
+
+	/* encrypts a whole file mapping it a window at a time */
+
+	private long encode(FileChannel file, WritableByteChannel out, Context ctx) throws IOException {
+		long size = file.size();
+		Window windows = new Window(file,FileChannel.MapMode.READ_ONLY,0,size,Window.defaultsize);
+		CRC32 crc = new CRC32();
+		ByteBuffer buf;
+
+		while ((buf = windows.next()) != null)
+			crc.update(buf);
+		encode((model == null) ? new Model(Histogram.count(file,size,charwidth),charwidth) : (bias ? model.rebias() : model),(int)crc.getValue(),size,new Window(file,FileChannel.MapMode.READ_ONLY,0,size,Window.defaultsize),out,ctx);
+		file.position(size);
+		return size;
+	}
+
+	/*
+		Writes header, code table and content
+
+		Model model - codes and code table
+		int crc - crc of input
+		long size - size of input
+		Window plain - windows of input
+		WritableByteChannel out - receives encrypted stream
+		Context ctx - working buffers
+
+		return size
+	*/
+	private long encode(Model model, int crc, long size, Window plain, WritableByteChannel out, Context ctx) throws IOException {
+		Header header = new Header(charwidth,size,keystream);
+		ByteBuffer head;
+
+		header.setCrc(crc);
+		head = header.toBuffer();
+		while (head.hasRemaining())
+			out.write(head);
+		Puffman.encodeBuffer(kdat,plain,size,out,model.getTable(),model.getTableBits(),model.getCodes(),model.getLens(),ctx.scratch,keystream ? new Keystream(kdat) : null,charwidth);
+		return size;
+	}
+
+	/* reads a channel to its end into the context buffer, growing it as needed */
+
+	private ByteBuffer read(ReadableByteChannel in, Context ctx) throws IOException {
+		ByteBuffer plain = ctx.plain;
+
+		plain.clear();
+		while (in.read(plain) >= 0) {
+			if (!plain.hasRemaining()) {
+				if (plain.capacity() >= Integer.MAX_VALUE/2)
+					throw new IOException("Stream input over 1 GB must be given as a file channel");
+				plain.flip();
+				plain = ByteBuffer.allocate(2*plain.capacity()).put(plain);
+				ctx.plain = plain;
+			}
+		}
+		plain.flip();
+		return plain;
+	}
+
+	private Context take() throws IOException {
+		try {
+			return contexts.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+}
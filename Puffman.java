@@ -27,7 +27,11 @@
 import java.io.*;
 import java.util.*;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.*;
 import java.lang.Math;
 import java.nio.BufferUnderflowException;
 import java.util.zip.CRC32;
@@ -36,9 +40,15 @@ import bitfuns.*;
 
 public class Puffman
 {
-	// change this value to decide encoded character width in bits
-	// maximum 7
-	private static final byte charwidth = 7;
+	// default encoded character width in bits and the only width the legacy encoder handles
+	// -width selects 8 or 16 bit symbols instead
+	protected static final byte charwidth = 7;
+
+	// size of reusable output buffer used by encodeBuffer
+	protected static final int outbufsize = 1<<16;
+
+	// bytes of memory used per byte of chunk by the BitSet based encoder
+	private static final int legacyratio = 8;
 
 	/*
 		Encodes file according to key and symbol table
@@ -50,22 +60,22 @@ public class Puffman
 		int cryptpos - start position in crypt
 		BitSet bitdat[] - symbol table
 		Byte lens[] - lengths of symbol table entries
+		Budget budget - memory that chunks may use
 
 		return CRC of input file
 	*/
-	private static int encodeFile(byte kdat[], ByteBuffer plainbuf, FileChannel cipherfile, BitSet crypt, int cryptpos, BitSet bitdat[], byte lens[]) throws IOException {
-		int testsize, remsize, origcryptpos, bufsize, readsize, writ, kpos=0, filepos=0;
+	protected static int encodeFile(byte kdat[], ByteBuffer plainbuf, FileChannel cipherfile, BitSet crypt, int cryptpos, BitSet bitdat[], byte lens[], Budget budget) throws IOException {
+		int testsize, remsize, bufsize, readsize, writ, kpos=0, filepos=0, chunks=0;
 		byte cipher[], dat[], ch[];
-		Runtime rt = Runtime.getRuntime();
 		ByteBuffer cipherbuf = ByteBuffer.allocate(0);
 		CRC32 crc = new CRC32();
 		BitSet datbits;
+		Metrics.Span span = Metrics.begin(Metrics.encode), part;
+		long symbols=0, written=0;
 
-		// allocates enough memory to read entire file
-		// if not enough memory is available it will allocate as much as it can
-		// and process the file in chunks
-		bufsize = (int)rt.freeMemory();
-		bufsize -= bufsize%charwidth;  // this ensures that no input character is split between chunks
+		// reads entire file if it fits in the memory budget otherwise processes the file in chunks
+		// chunks are a multiple of charwidth so that no input character is split between chunks
+		bufsize = budget.chunk(legacyratio,charwidth);
 		if (plainbuf.capacity() - filepos < bufsize)
 			bufsize = plainbuf.capacity()-filepos+1;  // ensures processing to EOF
 		dat = new byte[bufsize];
@@ -78,33 +88,32 @@ public class Puffman
 			plainbuf.get(dat,0,readsize);
 			// in the final chunk one byte is added to remaining size to ensure processing to EOF
 			testsize = Math.min(remsize+1,bufsize);
-			origcryptpos = cryptpos;  // saves original position to facilitate rollback
-			try {
-				datbits = Bitfun.fromByteArray(dat);
-				for (int i=0; i < testsize*8/charwidth; i++) {
-					ch = Bitfun.toByteArray(datbits.get(i*charwidth,charwidth*(i+1)));
-					for (int j=0; j < lens[ch[0]&0xFF]; j++) {
-						if (bitdat[ch[0]&0xFF].get(j)) crypt.set(cryptpos);
-						cryptpos++;
-					}
+			datbits = Bitfun.fromByteArray(dat);
+			for (int i=0; i < testsize*8/charwidth; i++) {
+				ch = Bitfun.toByteArray(datbits.get(i*charwidth,charwidth*(i+1)));
+				for (int j=0; j < lens[ch[0]&0xFF]; j++) {
+					if (bitdat[ch[0]&0xFF].get(j)) crypt.set(cryptpos);
+					cryptpos++;
 				}
-				crc.update(dat,0,readsize);
-				cipher = new byte[cryptpos/8];
-				cipher = Bitfun.toByteArray(crypt,cipher);
-				// this does the encryption
-				while (kpos < kdat.length) {
-					cipher[kpos] ^= kdat[kpos];
-					kpos++;
-				}
-				cipherbuf = ByteBuffer.wrap(cipher);
-			} catch (OutOfMemoryError e) {
-				cryptpos = origcryptpos;  // roll back cryptpos
-				bufsize = bufsize / 2;
-				dat = new byte[bufsize];
-				System.err.printf("Setting bufsize to %d bytes\n",bufsize);
 			}
+			symbols += testsize*8/charwidth;
+			chunks++;
+			part = Metrics.begin(Metrics.crc);
+			crc.update(dat,0,readsize);
+			part.end(readsize,0,0,1);
+			cipher = new byte[cryptpos/8];
+			cipher = Bitfun.toByteArray(crypt,cipher);
+			// this does the encryption
+			while (kpos < kdat.length) {
+				cipher[kpos] ^= kdat[kpos];
+				kpos++;
+			}
+			cipherbuf = ByteBuffer.wrap(cipher);
 
+			part = Metrics.begin(Metrics.write);
 			writ = cipherfile.write(cipherbuf);
+			part.end(0,writ,0,1);
+			written += writ;
 
 			filepos += bufsize;
 
@@ -119,9 +128,659 @@ public class Puffman
 		cipher = Bitfun.toByteArray(crypt);
 		cipherbuf = ByteBuffer.wrap(cipher);
 		writ = cipherfile.write(cipherbuf);
+		span.end(plainbuf.capacity(),written+writ,symbols,chunks);
+		return (int)crc.getValue();
+	}
+
+	/*
+		Encodes file according to key and symbol table without allocating per symbol.
+		Symbols are read from the mapped input and codes are packed a word at a time
+		into a reusable output buffer.  Byte aligned symbols are taken straight from
+		each window rather than shifted out of a register.
+
+		byte kdat[] - key data
+		Window plain - windows of input file
+		long plainsize - size of input file
+		WritableByteChannel cipherfile - output file
+		BitSet head - code table bits to precede content
+		int headbits - number of bits in head
+		long codes[] - symbol table
+		int lens[] - lengths of symbol table entries
+		ByteBuffer scratch - reusable heap buffer output is packed into
+		Keystream keys - applied over the whole stream or null
+		byte charwidth - symbol width in bits
+
+		return CRC of input file
+	*/
+	protected static int encodeBuffer(byte kdat[], Window plain, long plainsize, WritableByteChannel cipherfile, BitSet head, int headbits, long codes[], int lens[], ByteBuffer scratch, Keystream keys, byte charwidth) throws IOException {
+		return encodeBuffer(kdat,plain,plainsize,cipherfile,head,headbits,codes,lens,scratch,keys,charwidth,true);
+	}
+
+	// output going to memory is written again by the caller, which records that write instead
+	protected static int encodeBuffer(final byte kdat[], final Window plain, long plainsize, final WritableByteChannel cipherfile, BitSet head, int headbits, long codes[], int lens[], ByteBuffer scratch, Keystream keys, byte charwidth,
+		boolean counted) throws IOException {
+		final CRC32 crc = new CRC32();
+		final long writes[] = new long[3];  // time, bytes and number of flushes, recorded once at the end
+		Metrics.Span span = Metrics.begin(Metrics.encode);
+		ByteBuffer first;
+		BitWriter out;
+		long symbols;
+
+		// windows are added to the crc as they are handed to the reader
+		BufferSource source = new BufferSource() {
+			public ByteBuffer next() throws IOException {
+				ByteBuffer buf = plain.next();
+				Metrics.Span span;
+
+				if (buf != null) {
+					span = Metrics.begin(Metrics.crc);
+					crc.update(buf.duplicate());
+					span.end(buf.remaining(),0,0,1);
+				}
+				return buf;
+			}
+		};
+		first = source.next();
+		if (first == null)
+			first = ByteBuffer.allocate(0);
+		scratch.clear();
+		out = new BitWriter(scratch,new BufferSink() {
+			public ByteBuffer next(ByteBuffer full) throws IOException {
+				long start = System.nanoTime();
+
+				writes[1] += flush(kdat,full,cipherfile,writes[1]);
+				writes[0] += System.nanoTime()-start;
+				writes[2]++;
+				return full;
+			}
+		},keys);
+
+		// writes code table ahead of content
+		out.write(head,headbits);
+
+		// one extra byte of zeros is encoded past the end of input as encodeFile does
+		symbols = (plainsize+1)*8/charwidth;
+		encodeSymbols(first,source,symbols,out,codes,lens,charwidth);
+
+		// when it reaches end it still has to output any outstanding bits plus a byte as encodeFile does
+		out.write(0,8-(int)(out.count()&7));
+		out.finish();
+
+		if (counted)
+			Metrics.record(Metrics.write,writes[0],0,writes[1],0,writes[2]);
+		span.end(plainsize,out.count()/8,symbols,0);
+		return (int)crc.getValue();
+	}
+
+	/*
+		Encodes file in slices on a ForkJoin pool, producing the same stream as
+		encodeBuffer.  Once the tree is fixed so is every code, so the encoded
+		length of a slice follows from its symbol counts.  A running sum of these
+		gives the bit offset each slice starts at, and every slice is then coded
+		straight into its own mapping of the output.  The first byte of a slice,
+		which it may share with the slice before, is held back and merged once
+		all slices are done.
+
+		byte kdat[] - key data
+		FileChannel plainfile - input file
+		long plainsize - size of input file
+		FileChannel cipherfile - output file open for reading and writing
+		long offset - position in output of code table
+		long parts[][] - symbol counts of each slice from Histogram.countSlices
+		BitSet head - code table bits to precede content
+		int headbits - number of bits in head
+		long codes[] - symbol table
+		int lens[] - lengths of symbol table entries
+		byte charwidth - symbol width in bits
+		ForkJoinPool pool - pool coding slices, shut down on return
+
+		return CRC of input file
+	*/
+	protected static int encodeParallel(byte kdat[], final FileChannel plainfile, final long plainsize, final FileChannel cipherfile, final long offset, long parts[][], final BitSet head, final int headbits,
+		final long codes[], final int lens[], final byte charwidth, ForkJoinPool pool) throws IOException {
+		final int last = parts.length-1;
+		final long slice = Histogram.slice(charwidth), from[] = new long[parts.length+1], symbols = (plainsize+1)*8/charwidth, end;
+		final byte leads[] = new byte[parts.length];
+		ArrayList<ForkJoinTask<ByteBuffer>> tasks = new ArrayList<ForkJoinTask<ByteBuffer>>();
+		ByteBuffer dest, keyed, buf;
+		Window windows;
+		CRC32 crc = new CRC32();
+		Metrics.Span span;
+		long counted = 0;
+
+		// bit offset of each slice from the lengths of the codes it holds
+		for (int i=0; i <= last; i++) {
+			from[i+1] = from[i]+((i == 0) ? headbits : 0);
+			for (int s=0; s < parts[i].length; s++) {
+				from[i+1] += parts[i][s]*lens[s];
+				counted += parts[i][s];
+			}
+		}
+
+		// zeros past the last symbol counted, then padding to and past a byte as encodeBuffer does
+		from[last+1] += (symbols-counted)*lens[0];
+		end = from[last+1]/8+1;
+
+		for (int i=0; i <= last; i++) {
+			final int n = i;
+
+			tasks.add(pool.submit(new Callable<ByteBuffer>() {
+				public ByteBuffer call() throws IOException {
+					Metrics.Span span = Metrics.begin(Metrics.map);
+					long start = from[n]>>>3, stop = (n == last) ? end : (from[n+1]+7)>>>3;
+					long count = (n == last) ? symbols-n*(slice*8/charwidth) : slice*8/charwidth;
+					final ByteBuffer input = plainfile.map(FileChannel.MapMode.READ_ONLY,n*slice,Math.min(slice,plainsize-n*slice)).order(ByteOrder.LITTLE_ENDIAN);
+					final ByteBuffer dest = cipherfile.map(FileChannel.MapMode.READ_WRITE,offset+start,stop-start);
+					final ByteBuffer lead = ByteBuffer.allocate(1);
+					BitWriter out;
+
+					span.end(input.remaining(),0,0,2);
+					span = Metrics.begin(Metrics.encode);
+
+					// first byte goes to lead, the rest straight to the mapped output
+					out = new BitWriter(lead,new BufferSink() {
+						public ByteBuffer next(ByteBuffer full) {
+							if (full == lead) {
+								dest.position(1);
+								return dest;
+							}
+							return ByteBuffer.allocate(0);  // running past the end fails loudly
+						}
+					});
+					out.write(0,(int)(from[n]&7));
+					if (n == 0)
+						out.write(head,headbits);
+					encodeSymbols(input,new BufferSource() {
+						public ByteBuffer next() {
+							return null;
+						}
+					},count,out,codes,lens,charwidth);
+					if (n == last)
+						out.write(0,8-(int)(out.count()&7));
+					out.finish();
+					if ((from[n]&~7L)+out.count() != ((n == last) ? 8*end : from[n+1]))
+						throw new IOException("Slice "+n+" did not match its counted length");
+					leads[n] = lead.get(0);
+					span.end(input.capacity(),stop-start,count,1);
+					return dest;
+				}
+			}));
+		}
+
+		// crc is taken in order while slices are coded, over input the slices have already counted
+		windows = new Window(plainfile,FileChannel.MapMode.READ_ONLY,0,plainsize,Window.defaultsize).uncounted();
+		span = Metrics.begin(Metrics.crc);
+		while ((buf = windows.next()) != null)
+			crc.update(buf);
+		span.end(plainsize,0,0,0);
+
+		// merges each held back byte with any bits the slice before left in it
+		for (int i=0; i <= last; i++) {
+			dest = tasks.get(i).join();
+			dest.put(0,(byte)(dest.get(0) | leads[i]));
+		}
+		pool.shutdown();
+
+		// this does the encryption
+		keyed = cipherfile.map(FileChannel.MapMode.READ_WRITE,offset,Math.min(kdat.length,end));
+		for (int i=0; i < keyed.capacity(); i++)
+			keyed.put(i,(byte)(keyed.get(i) ^ kdat[i]));
+		return (int)crc.getValue();
+	}
+
+	/* Codes of one slice packed from bit zero, with the input they came from */
+
+	private static class Coded
+	{
+		private ByteBuffer input;
+		private ArrayList<ByteBuffer> bufs = new ArrayList<ByteBuffer>();
+		private long bits;  // bits of codes, the last buffer padded to a byte
+	}
+
+	/*
+		Encodes file in slices on a ForkJoin pool when no counts give the length
+		of each slice, as when the codes come from a trained model.  Each slice
+		is packed into memory from bit zero and the slices are appended to the
+		output in order at whatever bit the one before ended on, so the input is
+		read once and never counted.  No more slices are held than twice the
+		threads of the pool.  Produces the same stream as encodeBuffer.
+
+		byte kdat[] - key data
+		FileChannel plainfile - input file
+		long plainsize - size of input file
+		WritableByteChannel cipherfile - output file positioned after the header
+		BitSet head - code table bits to precede content
+		int headbits - number of bits in head
+		long codes[] - symbol table
+		int lens[] - lengths of symbol table entries
+		byte charwidth - symbol width in bits
+		ForkJoinPool pool - pool coding slices, shut down on return
+
+		return CRC of input file
+	*/
+	protected static int encodeSpliced(final byte kdat[], final FileChannel plainfile, final long plainsize, final WritableByteChannel cipherfile, BitSet head, int headbits,
+		final long codes[], final int lens[], final byte charwidth, ForkJoinPool pool) throws IOException {
+		final long slice = Histogram.slice(charwidth), symbols = (plainsize+1)*8/charwidth;
+		final int last = (int)((plainsize-1)/slice), ahead = 2*pool.getParallelism();
+		final long writes[] = new long[3];  // time, bytes and number of flushes, recorded once at the end
+		ArrayList<ForkJoinTask<Coded>> tasks = new ArrayList<ForkJoinTask<Coded>>();
+		CRC32 crc = new CRC32();
+		Metrics.Span span;
+		BitWriter out;
+		Coded coded;
+		long left;
+		int submitted = 0, n;
+
+		out = new BitWriter(ByteBuffer.allocate(outbufsize),new BufferSink() {
+			public ByteBuffer next(ByteBuffer full) throws IOException {
+				long start = System.nanoTime();
+
+				writes[1] += flush(kdat,full,cipherfile,writes[1]);
+				writes[0] += System.nanoTime()-start;
+				writes[2]++;
+				return full;
+			}
+		});
+		out.write(head,headbits);
+
+		for (int i=0; i <= last; i++) {
+			// keeps no more slices in memory than twice the threads
+			for (; submitted <= Math.min(last,i+ahead-1); submitted++) {
+				final int s = submitted;
+
+				tasks.add(pool.submit(new Callable<Coded>() {
+					public Coded call() throws IOException {
+						Metrics.Span span = Metrics.begin(Metrics.map);
+						long count = (s == last) ? symbols-s*(slice*8/charwidth) : slice*8/charwidth;
+						final Coded coded = new Coded();
+						BitWriter bits;
+
+						coded.input = plainfile.map(FileChannel.MapMode.READ_ONLY,s*slice,Math.min(slice,plainsize-s*slice)).order(ByteOrder.LITTLE_ENDIAN);
+						span.end(coded.input.remaining(),0,0,1);
+						span = Metrics.begin(Metrics.encode);
+						bits = new BitWriter(ByteBuffer.allocate(outbufsize),new BufferSink() {
+							public ByteBuffer next(ByteBuffer full) {
+								coded.bufs.add(full);
+								return ByteBuffer.allocate(outbufsize);
+							}
+						});
+						encodeSymbols(coded.input.duplicate().order(ByteOrder.LITTLE_ENDIAN),new BufferSource() {
+							public ByteBuffer next() {
+								return null;
+							}
+						},count,bits,codes,lens,charwidth);
+						bits.finish();
+						coded.bits = bits.count();
+						span.end(coded.input.remaining(),(coded.bits+7)/8,count,1);
+						return coded;
+					}
+				}));
+			}
+			coded = tasks.get(i).join();
+			tasks.set(i,null);
+
+			span = Metrics.begin(Metrics.crc);
+			crc.update(coded.input.duplicate());
+			span.end(coded.input.remaining(),0,0,1);
+
+			// appends the slice a word at a time from the bit the one before ended on
+			span = Metrics.begin(Metrics.encode);
+			left = coded.bits;
+			for (ByteBuffer buf : coded.bufs) {
+				buf.order(ByteOrder.LITTLE_ENDIAN);
+				for (; buf.remaining() >= 4; left -= n) {
+					n = (int)Math.min(32,left);
+					out.write((buf.getInt() & 0xFFFFFFFFL) & ((1L<<n)-1),n);
+				}
+				for (; buf.hasRemaining(); left -= n) {
+					n = (int)Math.min(8,left);
+					out.write((buf.get() & 0xFF) & ((1<<n)-1),n);
+				}
+			}
+			span.end(0,0,0,0);  // only the time counts, the slice being counted where it was coded
+		}
+		pool.shutdown();
+
+		// padding to and past a byte as encodeBuffer does
+		out.write(0,8-(int)(out.count()&7));
+		out.finish();
+		Metrics.record(Metrics.write,writes[0],0,writes[1],0,writes[2]);
+		return (int)crc.getValue();
+	}
+
+	/*
+		Packs the codes of a run of symbols.  Symbols past the end of input are
+		zeros.
+
+		ByteBuffer first - first buffer of input
+		BufferSource source - rest of input
+		long symbols - number of symbols to encode
+		BitWriter out - receives codes
+		long codes[] - symbol table
+		int lens[] - lengths of symbol table entries
+		byte charwidth - symbol width in bits
+	*/
+	private static void encodeSymbols(ByteBuffer first, BufferSource source, long symbols, BitWriter out, long codes[], int lens[], byte charwidth) throws IOException {
+		ByteBuffer buf;
+		BitReader in;
+		int sym, pos, limit, carry = -1;
+
+		if ((charwidth & 7) != 0) {
+			in = new BitReader(first,source);
+			for (; symbols > 0; symbols--) {
+				sym = (int)in.read(charwidth);
+				out.writeLong(codes[sym],lens[sym]);
+			}
+		}
+
+		// byte aligned symbols, a wide symbol split between windows being carried over
+		for (buf = first; ((charwidth & 7) == 0) && (buf != null) && (symbols > 0); buf = source.next()) {
+			pos = buf.position();
+			limit = buf.limit();
+			if ((carry >= 0) && (pos < limit)) {
+				sym = carry | (buf.get(pos++)&0xFF) << 8;
+				out.writeLong(codes[sym],lens[sym]);
+				symbols--;
+				carry = -1;
+			}
+			if (charwidth == 8) {
+				for (; (pos < limit) && (symbols > 0); pos++, symbols--) {
+					sym = buf.get(pos)&0xFF;
+					out.writeLong(codes[sym],lens[sym]);
+				}
+			} else {
+				for (; (pos+2 <= limit) && (symbols > 0); pos+=2, symbols--) {
+					sym = buf.getShort(pos)&0xFFFF;
+					out.writeLong(codes[sym],lens[sym]);
+				}
+				if (pos < limit)
+					carry = buf.get(pos)&0xFF;
+			}
+		}
+		for (; symbols > 0; symbols--) {
+			// past end of input symbols are padded with zeros
+			sym = Math.max(carry,0);
+			carry = -1;
+			out.writeLong(codes[sym],lens[sym]);
+		}
+	}
+
+	/*
+		Writes output buffer applying key to any part of stream it covers
+
+		byte kdat[] - key data
+		ByteBuffer out - output buffer flipped for writing, cleared on return
+		WritableByteChannel cipherfile - output file
+		long written - bytes of stream already written
+
+		return number of bytes written
+	*/
+	private static int flush(byte kdat[], ByteBuffer out, WritableByteChannel cipherfile, long written) throws IOException {
+		byte cipher[] = out.array();
+		int size = out.remaining();
+
+		// this does the encryption
+		for (long kpos=written; kpos < Math.min(kdat.length,written+size); kpos++)
+			cipher[(int)(kpos-written)] ^= kdat[(int)kpos];
+
+		while (out.hasRemaining())
+			cipherfile.write(out);
+		out.clear();
+		return size;
+	}
+
+	/*
+		Encodes one block with its own model and code table
+
+		byte kdat[] - key data
+		ByteBuffer block - input block
+		int crcs[] - receives crc of block
+		int b - block number
+		ByteArrayOutputStream cipher - reusable buffer receiving encrypted block
+		int streams - interleaved streams or 0 for one
+		int maxlength - longest code allowed
+		boolean compact - whether the code table holds code lengths
+		byte charwidth - symbol width in bits
+
+		return cipher
+	*/
+	private static ByteArrayOutputStream encodeBlock(byte kdat[], ByteBuffer block, int crcs[], int b, ByteArrayOutputStream cipher, int streams, int maxlength, boolean compact, byte charwidth) throws IOException {
+		int tablen[] = new int[2], lens[];
+		long codes[];
+		BitSet bittab;
+
+		// blocks are already counted in parallel so each is counted on one thread
+		lens = Canonical.lengths(bias(Histogram.count(block,charwidth,new long[1<<charwidth])),maxlength);
+		codes = Canonical.codes(lens);
+		bittab = compact ? Canonical.table(lens,tablen) : codeTable(Canonical.tree(lens),tablen,charwidth);
+		cipher.reset();
+		if (streams > 0) {
+			crcs[b] = encodeStreams(kdat,block,cipher,bittab,tablen[0]+tablen[1],codes,lens,streams,charwidth);
+			return cipher;
+		}
+		crcs[b] = encodeBuffer(kdat,new Window(block),block.remaining(),Channels.newChannel(cipher),bittab,tablen[0]+tablen[1],codes,lens,ByteBuffer.allocate(outbufsize),null,charwidth,false);
+		return cipher;
+	}
+
+	/*
+		Encodes one block as interleaved streams.  Symbols are dealt round robin
+		so stream s holds symbols s, s+n, s+2n and so on, and a decoder can work
+		on all of them at once.  The code table is padded to a byte and followed
+		by the byte length of every stream but the last, then the streams each
+		padded to a byte.  The last symbol is padded with zeros.
+
+		byte kdat[] - key data
+		ByteBuffer block - input block
+		ByteArrayOutputStream cipher - receives encrypted block
+		BitSet head - code table bits
+		int headbits - number of bits in head
+		long codes[] - symbol table
+		int lens[] - lengths of symbol table entries
+		int streams - number of streams
+		byte charwidth - symbol width in bits
+
+		return CRC of block
+	*/
+	private static int encodeStreams(byte kdat[], ByteBuffer block, ByteArrayOutputStream cipher, BitSet head, int headbits, long codes[], int lens[], int streams, byte charwidth) throws IOException {
+		Metrics.Span span = Metrics.begin(Metrics.encode);
+		ByteArrayOutputStream parts[] = new ByteArrayOutputStream[streams+1];
+		BitWriter out[] = new BitWriter[streams+1];
+		BitReader in = new BitReader(block,new BufferSource() {
+			public ByteBuffer next() {
+				return null;
+			}
+		});
+		long symbols = ((long)block.remaining()*8+charwidth-1)/charwidth;
+		CRC32 crc = new CRC32();
+		ByteBuffer cipherbuf;
+		int sym, s = 0;
+
+		// part 0 takes the code table and the parts after it one stream each
+		for (int p=0; p <= streams; p++) {
+			final ByteArrayOutputStream part = parts[p] = new ByteArrayOutputStream();
+
+			out[p] = new BitWriter(ByteBuffer.allocate(outbufsize),new BufferSink() {
+				public ByteBuffer next(ByteBuffer full) {
+					part.write(full.array(),full.position(),full.remaining());
+					full.clear();
+					return full;
+				}
+			});
+		}
+		out[0].write(head,headbits);
+		for (long i=0; i < symbols; i++) {
+			sym = (int)in.read(charwidth);
+			out[1+s].writeLong(codes[sym],lens[sym]);
+			if (++s == streams)
+				s = 0;
+		}
+		for (int p=0; p <= streams; p++)
+			out[p].finish();
+
+		cipherbuf = ByteBuffer.allocate(parts[0].size()+4*(streams-1));
+		cipherbuf.put(parts[0].toByteArray());
+		for (int p=1; p < streams; p++)
+			cipherbuf.putInt(parts[p].size());
+		cipher.write(cipherbuf.array());
+		for (int p=1; p <= streams; p++)
+			parts[p].writeTo(cipher);
+
+		// this does the encryption, the key reaching past the table when it is long
+		cipherbuf = ByteBuffer.wrap(cipher.toByteArray());
+		cipher.reset();
+		for (int i=0; i < Math.min(kdat.length,cipherbuf.capacity()); i++)
+			cipherbuf.put(i,(byte)(cipherbuf.get(i) ^ kdat[i]));
+		cipher.write(cipherbuf.array());
+
+		crc.update(block.duplicate());
+		span.end(block.remaining(),cipher.size(),symbols,streams);
+		return (int)crc.getValue();
+	}
+
+	/*
+		Encodes file as independent blocks on a ForkJoin pool.  Blocks are encoded
+		concurrently but written in order after the header and block index.  The
+		index holds the encrypted length and crc of each block.  Encrypted blocks
+		are held in a pool of buffers sized by the memory budget.
+
+		byte kdat[] - key data
+		FileChannel plainfile - input file
+		FileChannel cipherfile - output file
+		Header header - header giving file and block size
+		Budget budget - memory that buffered blocks may use
+		int maxlength - longest code allowed
+
+		return crc of block index
+	*/
+	private static int encodeBlocks(final byte kdat[], final FileChannel plainfile, FileChannel cipherfile, final Header header, Budget budget, final int maxlength) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool();
+		final int nblocks = header.getBlocks(), crcs[] = new int[nblocks];
+		final Pool<ByteArrayOutputStream> buffers = new Pool<ByteArrayOutputStream>(budget.slots(header.getBlocksize(),2*pool.getParallelism())) {
+			protected ByteArrayOutputStream create() {
+				return new ByteArrayOutputStream(header.getBlocksize());
+			}
+		};
+		int submitted = 0;
+		ArrayList<ForkJoinTask<ByteArrayOutputStream>> tasks = new ArrayList<ForkJoinTask<ByteArrayOutputStream>>();
+		ByteBuffer index = ByteBuffer.allocate(nblocks*8);
+		OutputStream out = Channels.newOutputStream(cipherfile);
+		ByteArrayOutputStream cipher;
+		CRC32 crc = new CRC32();
+		Metrics.Span span;
+
+		cipherfile.position(header.size()+index.capacity());
+		try {
+			for (int b=0; b < nblocks; b++) {
+				// keeps no more blocks in memory than the pool holds
+				for (; submitted < Math.min(nblocks,b+buffers.getSize()); submitted++) {
+					final int n = submitted;
+					final ByteArrayOutputStream buf = buffers.take();
+
+					tasks.add(pool.submit(new Callable<ByteArrayOutputStream>() {
+						public ByteArrayOutputStream call() throws IOException {
+							long start = (long)n*header.getBlocksize();
+							Metrics.Span span = Metrics.begin(Metrics.map);
+							ByteBuffer block = plainfile.map(FileChannel.MapMode.READ_ONLY,start,Math.min(header.getBlocksize(),header.getLength()-start));
+
+							span.end(block.remaining(),0,0,1);
+							return encodeBlock(kdat,block,crcs,n,buf,header.getStreams(),maxlength,header.isCompact(),header.getCharwidth());
+						}
+					}));
+				}
+
+				cipher = tasks.get(b).join();
+				tasks.set(b,null);
+				index.putInt(cipher.size());
+				index.putInt(crcs[b]);
+				span = Metrics.begin(Metrics.write);
+				cipher.writeTo(out);
+				span.end(0,cipher.size(),0,1);
+				buffers.give(cipher);
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		pool.shutdown();
+
+		// writes block index after header
+		index.flip();
+		crc.update(index.duplicate());
+		cipherfile.write(index,header.size());
 		return (int)crc.getValue();
 	}
 
+	/*
+		Describes tree as the code table written ahead of content
+
+		Node tree - Huffman tree
+		int tablen[] - receives bit lengths of tree id and content order
+		byte charwidth - symbol width in bits
+
+		return code table
+	*/
+	protected static BitSet codeTable(Node tree, int tablen[], byte charwidth) {
+		Metrics.Span span = Metrics.begin(Metrics.table);
+		BitSet codetab, treeidbits, contenttab[], tab[] = new BitSet[2];
+
+		// gets content order
+		contenttab = tree.getContent();
+		codetab = Bitfun.combinebits(contenttab,charwidth);
+
+		// gets tree number or for wide alphabets the shape of the tree
+		treeidbits = (charwidth <= Node.maxranked) ? Bitfun.fromBigInteger(tree.getTreeNumber()) : tree.getShape();
+
+		// combine codewidthstab and codetab into single bitset
+		tab[0] = treeidbits;
+		tab[1] = codetab;
+		tablen[0] = Node.idBits(charwidth);
+		tablen[1] = (int)java.lang.Math.pow(2,charwidth)*charwidth;
+		span.end(0,(tablen[0]+tablen[1])/8,0,0);
+		return Bitfun.combinebits(tab,tablen);
+	}
+
+	/*
+		Encodes every file named in a list or found under a directory, each to
+		its own .puf file.  Files already ending in .puf are passed over when
+		walking a directory.
+
+		String path - list file or directory
+		byte kdat[] - key data
+		int threads - files encoded at once
+		boolean keystream - whether a keystream covers each whole file
+		byte width - symbol width in bits
+
+		return number of files that failed
+	*/
+	private static int encodeBatch(String path, byte kdat[], int threads, boolean keystream, byte width, Model model, boolean bias) throws IOException {
+		final PuffEncoder encoder = (model == null) ? new PuffEncoder(kdat,threads,keystream,width) : new PuffEncoder(kdat,threads,keystream,model,bias);
+		Batch batch = new Batch(threads) {
+			protected boolean accept(String file) {
+				return !file.endsWith(".puf");
+			}
+
+			protected void process(String file) throws IOException {
+				FileChannel in = new FileInputStream(file).getChannel(), out = null;
+				boolean done = false;
+
+				try {
+					out = new FileOutputStream(file+".puf").getChannel();
+					encoder.encode(in,out);
+					done = true;
+				} finally {
+					in.close();
+					if (out != null) {
+						out.close();
+						if (!done)
+							new File(file+".puf").delete();
+					}
+				}
+			}
+		};
+
+		batch.run(path);
+		return batch.report("Encrypted");
+	}
+
 	/*
 		main method
 
@@ -133,88 +792,309 @@ public class Puffman
 		Node tree;
 		FileChannel input, output;
 		byte dat[], kdat[], codewidths[] = new byte[(int)java.lang.Math.pow(2,charwidth)];
-		BitSet bittab, treeidbits, codetab, bitstream, contenttab[], tab[] = new BitSet[2], code[] = new BitSet[(int)java.lang.Math.pow(2,charwidth)];
-		ByteBuffer inbuf, outbuf;
-		int inputsize, crc, headsize, bufsize = Integer.MAX_VALUE, tablen[] = new int[2];
-		Runtime rt = Runtime.getRuntime();
-		String filesig = "PUFF";
-		BigInteger treeid;
+		BitSet bittab, bitstream, code[] = new BitSet[(int)java.lang.Math.pow(2,charwidth)];
+		ByteBuffer inbuf;
+		int crc, bufsize, window = Window.defaultsize, blocksize = 0, streams = 0, maxlength = Canonical.maxlength, tablen[] = new int[2], lens[] = null, headbits;
+		int threads = Runtime.getRuntime().availableProcessors(), failed;
+		long inputsize, codes[] = null, parts[][] = null;
+		Budget budget = null;
+		String batch = null, archive = null, train = null;
+		ArrayList<String> files = new ArrayList<String>();
+		boolean legacy = false, keystream = false, stats = false, bias = false, widthset = false, stream = false, parallel = false, lengthset = false, compact = false, done = false;
+		Model model = null, drawn;
+		ForkJoinPool pool = null;
+		byte width = charwidth;
+		Header header;
+
+		// separates options from file names
+		for (int i=0; i < args.length; i++) {
+			if (args[i].equals("-legacy"))
+				legacy = true;
+			else if (args[i].equals("-window") && (i+1 < args.length))
+				window = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-block") && (i+1 < args.length))
+				blocksize = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-interleave") && (i+1 < args.length))
+				streams = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-maxlen") && (i+1 < args.length)) {
+				maxlength = Integer.parseInt(args[++i]);
+				lengthset = true;
+			} else if (args[i].equals("-compact"))
+				compact = true;
+			else if (args[i].equals("-keystream"))
+				keystream = true;
+			else if (args[i].equals("-width") && (i+1 < args.length)) {
+				width = Byte.parseByte(args[++i]);
+				widthset = true;
+			}
+			else if (args[i].equals("-memory") && (i+1 < args.length))
+				budget = new Budget(Long.parseLong(args[++i]));
+			else if (args[i].equals("-stats"))
+				stats = true;
+			else if (args[i].equals("-batch") && (i+1 < args.length))
+				batch = args[++i];
+			else if (args[i].equals("-threads") && (i+1 < args.length))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-archive") && (i+1 < args.length))
+				archive = args[++i];
+			else if (args[i].equals("-train") && (i+1 < args.length))
+				train = args[++i];
+			else if (args[i].equals("-model") && (i+1 < args.length))
+				model = Model.get(args[++i]);
+			else if (args[i].equals("-bias"))
+				bias = true;
+			else if (args[i].equals("-stream"))
+				stream = true;
+			else
+				files.add(args[i]);
+		}
+
+		if (budget == null)
+			budget = new Budget();
+
+		if ((width != 7) && (width != 8) && (width != 16)) {
+			System.err.println("-width must be 7, 8 or 16");
+			System.exit(1);
+		}
+
+		if ((maxlength < width) || (maxlength > 64)) {
+			System.err.println("-maxlen must be from the symbol width to 64 bits");
+			System.exit(1);
+		}
+		if (lengthset && ((batch != null) || (archive != null) || stream || (model != null))) {
+			System.err.println("-maxlen cannot be combined with -batch, -archive, -stream or -model");
+			System.exit(1);
+		}
+
+		if (compact && (legacy || (batch != null) || (archive != null) || stream || (train != null))) {
+			System.err.println("-compact cannot be combined with -legacy, -batch, -archive, -stream or -train");
+			System.exit(1);
+		}
+
+		if ((streams != 0) && ((blocksize <= 0) || (streams < 2) || (streams > 255))) {
+			System.err.println("-interleave needs -block and from 2 to 255 streams");
+			System.exit(1);
+		}
+
+		if ((train != null) && (files.size() >= 1)) {
+			// no key is needed since models are written unencrypted
+			Model.train(files,width,maxlength).save(train);
+			System.out.println("Trained "+width+" bit model on "+files.size()+" files");
+			if (stats)
+				System.out.println(Metrics.total);
+			System.exit(0);
+		}
+
+		if (model != null) {
+			if (widthset && (width != model.getCharwidth())) {
+				System.err.println("-width does not match the "+model.getCharwidth()+" bit model");
+				System.exit(1);
+			}
+			if (legacy || (blocksize > 0) || (archive != null)) {
+				System.err.println("-model cannot be combined with -legacy, -block or -archive");
+				System.exit(1);
+			}
+			width = model.getCharwidth();
+		}
+
+		if (stream && (files.size() == 1)) {
+			if (legacy || (blocksize > 0) || keystream || (model != null) || (archive != null) || (batch != null)) {
+				System.err.println("-stream cannot be combined with -legacy, -block, -keystream, -model, -archive or -batch");
+				System.exit(1);
+			}
+
+			// standard output carries the stream so nothing else may be printed there
+			Adaptive.encode(new FileInputStream(FileDescriptor.in).getChannel(),new FileOutputStream(FileDescriptor.out).getChannel(),Key.getKey(files.get(0)),width);
+			if (stats)
+				System.err.println(Metrics.total);
+			System.exit(0);
+		}
+
+		if ((archive != null) && (files.size() >= 2)) {
+			if (legacy || (blocksize > 0) || keystream || (batch != null)) {
+				System.err.println("-archive cannot be combined with -legacy, -block, -keystream or -batch");
+				System.exit(1);
+			}
+			System.out.println("Encrypting with "+width+" bit wordsize");
+
+			// files named ahead of the key share one model
+			try {
+				Archive.create(archive,files.subList(0,files.size()-1),Key.getKey(files.get(files.size()-1)),width);
+			} catch (IOException e) {
+				System.err.println(archive+": "+e.getMessage());
+				new File(archive).delete();
+				System.exit(1);
+			}
+			if (stats)
+				System.out.println(Metrics.total);
+			System.exit(0);
+		}
+
+		if ((batch != null) && (files.size() == 1)) {
+			if (legacy || (blocksize > 0)) {
+				System.err.println("-batch cannot be combined with -legacy or -block");
+				System.exit(1);
+			}
+			System.out.println("Encrypting with "+width+" bit wordsize");
+
+			// key is read once for every file
+			failed = encodeBatch(batch,Key.getKey(files.get(0)),threads,keystream,width,model,bias);
+			if (stats)
+				System.out.println(Metrics.total);
+			System.exit((failed > 0) ? 1 : 0);
+		}
 
-		if (args.length == 2) {
-			System.out.println("Encrypting with "+charwidth+" bit wordsize");
+		if (files.size() == 2) {
+			System.out.println("Encrypting with "+width+" bit wordsize");
 
 			// gets key data
-			kdat = Key.getKey(args[1]);
+			kdat = Key.getKey(files.get(1));
 
 			// opens input file
-			input = new FileInputStream(args[0]).getChannel();
-			inbuf = input.map(FileChannel.MapMode.READ_ONLY, 0, (int)input.size());
-			input.close();
-
-			// if the file is too big to read in a single chunk huffman table will be based only on first chunk
-			// in theory this could fail if a symbol occurs in the file that was not in the first chunk, however
-			// this seems like a remote posibility in practice.
-			inputsize = inbuf.capacity();
-			if (inputsize < bufsize)
-				bufsize = inputsize;
-			if (rt.freeMemory() < bufsize)
-		  		bufsize = (int)rt.freeMemory();
-			dat = new byte[bufsize];
-			inbuf.get(dat);
-
-			// convert to bitstream
-			bitstream = Bitfun.fromByteArray(dat);
-			dat = null;
-			tree = buildTree(bitstream);
-
-			// calculates size of header
-			headsize = filesig.getBytes().length+(Integer.SIZE*2+Byte.SIZE)/8;
-
-			// opens output file
-			output = new FileOutputStream(args[0]+".puf").getChannel();
-
-			// generates codes
-			Node.genCodes(tree,code,codewidths);
-
-			// gets content order
-			contenttab = tree.getContent();
-			codetab = Bitfun.combinebits(contenttab,charwidth);
-
-			// gets tree number
-			treeid = tree.getTreeNumber();
-			treeidbits = Bitfun.fromBigInteger(treeid);
-
-			// combine codewidthstab and codetab into single bitset
-			tab[0] = treeidbits;
-			tab[1] = codetab;
-			tablen[0] = tree.maxTrees().bitLength();
-			tablen[1] = (int)java.lang.Math.pow(2,charwidth)*charwidth;
-			bittab = Bitfun.combinebits(tab,tablen);
-
-			// writes code table then encrypted content
-			output.position(headsize);
-			crc = encodeFile(kdat, inbuf,output,bittab,tablen[0]+tablen[1],code,codewidths);
-			outbuf = ByteBuffer.allocate(headsize);
-
-			// puts file signature to header
-			outbuf.put(filesig.getBytes());
-
-			// puts character width to header
-			outbuf.put(charwidth);
-
-			// puts original file length to header
-			outbuf.putInt(inputsize);
-
-			// puts original file crc
-			outbuf.putInt(crc);
-
-			// writes file header
-			outbuf.rewind();
-			output.position(0);
-			output.write(outbuf);
-			output.close();
+			input = new FileInputStream(files.get(0)).getChannel();
+			inputsize = input.size();
+			if (legacy && (inputsize > Integer.MAX_VALUE)) {
+				System.err.println("-legacy cannot encrypt files over 2 GB");
+				System.exit(1);
+			}
+			if (legacy && (blocksize > 0)) {
+				System.err.println("-legacy cannot encrypt in blocks");
+				System.exit(1);
+			}
+			if (legacy && (width != charwidth)) {
+				System.err.println("-legacy only encrypts "+charwidth+" bit words");
+				System.exit(1);
+			}
+			if (keystream && (legacy || (blocksize > 0))) {
+				System.err.println("-keystream cannot be combined with -legacy or -block");
+				System.exit(1);
+			}
+
+			if (blocksize > 0) {
+				// each block builds its own tree
+				header = (streams > 0) ? new Header(width,inputsize,blocksize,streams) : new Header(width,inputsize,blocksize);
+				header.setCompact(compact);
+				output = new FileOutputStream(files.get(0)+".puf").getChannel();
+				try {
+					header.setCrc(encodeBlocks(kdat,input,output,header,budget,maxlength));
+					output.write(header.toBuffer(),0);
+					done = true;
+				} finally {
+					input.close();
+					output.close();
+					if (!done)
+						new File(files.get(0)+".puf").delete();
+				}
+				if (stats)
+					System.out.println(Metrics.total);
+				return;
+			}
+			inbuf = null;
+			if (legacy) {
+				// legacy encoder needs whole file mapped
+				inbuf = input.map(FileChannel.MapMode.READ_ONLY, 0, inputsize);
+
+				// if the file is too big to read in a single chunk huffman table will be based only on first chunk
+				// in theory this could fail if a symbol occurs in the file that was not in the first chunk, however
+				// this seems like a remote posibility in practice.
+				bufsize = Math.min(inbuf.capacity(),budget.chunk(legacyratio,charwidth));
+				dat = new byte[bufsize];
+				inbuf.get(dat);
+
+				// convert to bitstream
+				bitstream = Bitfun.fromByteArray(dat);
+				dat = null;
+				tree = buildTree(bitstream,maxlength);
+				Node.genCodes(tree,code,codewidths);
+				bittab = codeTable(tree,tablen,width);
+				headbits = Node.tableBits(width);
+			} else {
+				// one pool within the thread limit counts the file and codes its slices
+				pool = new ForkJoinPool(Math.max(1,threads));
+
+				// files of several slices are coded a slice per thread, counted first only when the codes are drawn from them
+				parallel = !keystream && (threads > 1) && (inputsize > Histogram.slice(width));
+				if (parallel && (model == null))
+					parts = Histogram.countSlices(input,inputsize,width,pool);
+
+				// counts whole file in parallel slices then builds canonical codes, unless a trained model is given
+				if (model == null)
+					drawn = new Model(parallel ? Histogram.sum(parts) : Histogram.count(input,inputsize,width,pool),width,maxlength);
+				else
+					drawn = bias ? model.rebias() : model;
+				lens = drawn.getLens();
+				codes = drawn.getCodes();
+				if (compact) {
+					// code lengths alone take the place of tree id and content order
+					bittab = Canonical.table(lens,tablen);
+					headbits = tablen[0];
+				} else {
+					bittab = drawn.getTable();
+					headbits = Node.tableBits(width);
+				}
+			}
+
+			// files over 2 GB or with a keystream get a header with 64 bit length
+			header = new Header(width,inputsize,keystream);
+			header.setCompact(compact);
+
+			// opens output file, for reading too when slices are mapped into it
+			if (parts != null) {
+				output = new RandomAccessFile(files.get(0)+".puf","rw").getChannel();
+				output.truncate(0);
+			} else
+				output = new FileOutputStream(files.get(0)+".puf").getChannel();
+
+			// writes code table then encrypted content, removing the output if either fails
+			try {
+				output.position(header.size());
+				if (parts != null)
+					crc = encodeParallel(kdat,input,inputsize,output,header.size(),parts,bittab,headbits,codes,lens,width,pool);
+				else if (parallel)
+					crc = encodeSpliced(kdat,input,inputsize,output,bittab,headbits,codes,lens,width,pool);
+				else if (legacy)
+					crc = encodeFile(kdat, inbuf,output,bittab,headbits,code,codewidths,budget);
+				else
+					crc = encodeBuffer(kdat,new Window(input,FileChannel.MapMode.READ_ONLY,0,inputsize,window),inputsize,output,bittab,headbits,codes,lens,ByteBuffer.allocate(outbufsize),keystream ? new Keystream(kdat) : null,width);
+
+				// writes file header
+				header.setCrc(crc);
+				output.position(0);
+				output.write(header.toBuffer());
+				done = true;
+			} finally {
+				if (pool != null)
+					pool.shutdown();
+				input.close();
+				output.close();
+				if (!done)
+					new File(files.get(0)+".puf").delete();
+			}
+			if (stats)
+				System.out.println(Metrics.total);
 		} else {
-			System.out.println("Usage:  java Puffman <infile> <keyfile>");
+			System.out.println("Usage:  java Puffman [-legacy] [-window <bytes>] [-block <bytes> [-interleave <n>]] [-keystream] [-width <bits>] [-maxlen <bits>] [-compact] [-model <modelfile> [-bias]] [-threads <n>] [-memory <bytes>] [-stats] <infile> <keyfile>");
+			System.out.println("        java Puffman -batch <listfile|directory> [-threads <n>] [-keystream] [-width <bits>] [-model <modelfile> [-bias]] [-stats] <keyfile>");
+			System.out.println("        java Puffman -archive <archivefile> [-width <bits>] [-stats] <file>... <keyfile>");
+			System.out.println("        java Puffman -train <modelfile> [-width <bits>] [-maxlen <bits>] [-stats] <file>...");
+			System.out.println("        java Puffman -stream [-width <bits>] [-stats] <keyfile> < <infile> > <outfile>");
+			System.out.println("-legacy encodes through BitSets one bit at a time");
+			System.out.println("-window sets how much of the input is mapped at once");
+			System.out.println("-block encodes independent blocks of this size in parallel");
+			System.out.println("-interleave deals the symbols of each block across this many streams decoded together");
+			System.out.println("-keystream applies a keystream derived from the key over the whole output");
+			System.out.println("-width sets symbol width to 7, 8 or 16 bits");
+			System.out.println("-maxlen sets the longest code, 32 bits by default");
+			System.out.println("-compact writes code tables as code lengths rather than tree id and content order");
+			System.out.println("-memory sets how many bytes of buffers may be held at once");
+			System.out.println("-stats prints time, bytes and symbols of each phase when done");
+			System.out.println("-batch encrypts every file named in a list or found under a directory");
+			System.out.println("-threads sets how many files a batch encrypts at once or how many slices of a file");
+			System.out.println("-archive encrypts several files into one archive sharing a single code table");
+			System.out.println("-train writes a model counted over sample files");
+			System.out.println("-model encrypts in a single pass with the tree of a trained model");
+			System.out.println("-bias draws a fresh tree from the model counts for each file");
+			System.out.println("-stream encrypts standard input to standard output in one pass with adaptive codes");
 			System.out.println("In file will be encrypted in <infile>.puff");
 		}
 	}
@@ -223,16 +1103,17 @@ public class Puffman
 		Generates Huffman tree based on bitset contents
 
 		BitSet fileContents - contents of input file
+		int maxlength - longest code allowed
 
 		return root node
 	*/
-	private static Node buildTree(BitSet fileContents)
+	protected static Node buildTree(BitSet fileContents, int maxlength)
 		throws IOException
 	{
+		Metrics.Span span = Metrics.begin(Metrics.tree);
 		byte ch[];
-		int[] frequency = new int[(int)java.lang.Math.pow(2,charwidth)];  // frequency of character
-		TreeSet<Node> trees = new TreeSet<Node>();  // ordered list of trees
-		Random bias = new Random();
+		long[] frequency = new long[(int)java.lang.Math.pow(2,charwidth)];  // frequency of character
+		Node tree;
 
 		// builds the frequency table for each character
 		for (int i=0; i < fileContents.length()/charwidth; i++)
@@ -241,12 +1122,69 @@ public class Puffman
 			++frequency[ch[0]&0xFF];
 		}
 
+		tree = buildTree(frequency,maxlength);
+		span.end(fileContents.length()/8,0,frequency.length,1);
+		return tree;
+	}
+
+	/*
+		Biases symbol frequencies into the weights trees are built from
+
+		long frequency[] - frequency of each symbol
+
+		return weight of each symbol
+	*/
+	protected static int[] bias(long frequency[])
+	{
+		return bias(frequency,new Random());
+	}
+
+	/*
+		Biases symbol frequencies drawing from a given generator, so that a
+		decoder seeded alike can draw the same weights
+
+		long frequency[] - frequency of each symbol
+		Random bias - source of bias
+
+		return weight of each symbol
+	*/
+	protected static int[] bias(long frequency[], Random bias)
+	{
+		int weight[] = new int[frequency.length], shift = 0;
+		long total = 0;
+
+		// counts from files over 2 GB are scaled down so that merged weights fit in an int
+		for (int i=0; i < frequency.length; i++)
+			total += frequency[i]+1;
+		while ((total >>> shift) > (1 << 30)-frequency.length)
+			shift++;
+
+		// the frequencies are biased by producing a pseudo random number up to the actual frquency value
+		// in the hopes of producing less predictable tokens and token lengths
+		for (int i=0; i < frequency.length; i++)
+			weight[i] = bias.nextInt((int)(frequency[i] >>> shift)+1)+1;
+		return weight;
+	}
+
+	/*
+		Generates Huffman tree based on symbol frequencies.  A tree deeper than
+		the limit is replaced by the canonical tree of limited code lengths drawn
+		from the same weights.
+
+		long frequency[] - frequency of each symbol
+		int maxlength - longest code allowed
+
+		return root node
+	*/
+	private static Node buildTree(long frequency[], int maxlength)
+	{
+		TreeSet<Node> trees = new TreeSet<Node>();  // ordered list of trees
+		int weight[] = bias(frequency);
+
 		// Builds the initial trees
 		for (byte i=0; (i&0xFF) < frequency.length; i++)
 		{
-			// the frequencies are biased by producing a pseudo random number up to the actual frquency value
-			// in the hopes of producing less predictable tokens and token lengths
-			Node n = new Node(i, bias.nextInt(frequency[i&0xFF]+1)+1);
+			Node n = new Node(i, weight[i&0xFF]);
 			trees.add(n);
 			// adds entire alphabet, even characters not used in message so that decrypter can calculate number
 			// of nodes based soley on character width
@@ -255,14 +1193,17 @@ public class Puffman
 		// Huffman algoritm
 		while (trees.size() > 1)
 		{
-			Node tree1 = (Node) trees.first();
+			Node tree1 = trees.first();
 			trees.remove(tree1);
-			Node tree2 = (Node) trees.first();
+			Node tree2 = trees.first();
 			trees.remove(tree2);
 
 			Node merged = new Node(tree1, tree2);
 			trees.add(merged);
 		}
+		for (int len : Canonical.lengths(trees.first(),charwidth))
+			if (len > maxlength)
+				return Canonical.tree(Canonical.lengths(weight,maxlength));
 		return trees.first();
 	}
 }
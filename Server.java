@@ -0,0 +1,387 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Long running daemon that encrypts and decrypts streams sent over a
+	localhost socket, so that callers pay JVM start up and warm up once.
+	Keys are read from the files named on the command line when it starts
+	and requests pick one by the name given with it, so a client can only
+	use the keys the daemon was started with.  Each key keeps an encoder
+	and decoder whose buffers stay allocated between requests.
+
+	A connection carries any number of requests one after another.  Each
+	connection has its own thread, which waits for the next request without
+	holding a worker and is dropped once it has been idle for the timeout.
+	Requests are run by a fixed pool of workers.  Each request is an op byte
+	followed by its arguments and, for E and D, the input as chunks.  A chunk
+	is an int length followed by that many bytes, and a zero length ends the
+	data.  Ints are big endian and strings are in the modified UTF-8 of
+	DataOutputStream.writeUTF.
+
+	E <keyname> <width byte> <keystream boolean> <chunks> - encrypt
+	D <keyname> <chunks> - decrypt
+	S - statistics
+
+	E and D reply with the output as chunks followed by a boolean that is
+	true on success and a message string.  As with Depuff, decrypted output
+	is only known to be good once the reply says so.  A key name the daemon
+	was not started with fails the request.  S replies with a single string.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Server
+{
+	protected static final int defaultport = 7077;
+	protected static final int defaulttimeout = 60000;  // milliseconds a connection may sit idle
+	private static final int chunksize = 1<<16;  // bytes of output sent in each chunk
+	private static final int window = 1<<16;  // requests latency percentiles are taken over
+	private static final int warmsize = 1<<20;  // bytes encrypted to warm up the JIT
+	private static final int warmrounds = 10;
+
+	private ExecutorService workers;  // runs requests
+	private ExecutorService connections = Executors.newCachedThreadPool();  // waits on each connection between requests
+	private int threads;
+	private int timeout;
+	private Map<String,byte[]> keys;  // key data by name, fixed at start up
+	private ConcurrentHashMap<String,PuffEncoder> encoders = new ConcurrentHashMap<String,PuffEncoder>();
+	private ConcurrentHashMap<String,PuffDecoder> decoders = new ConcurrentHashMap<String,PuffDecoder>();
+	private Latency latency = new Latency(window);
+
+	/* Constructor */
+
+	protected Server(Map<String,byte[]> keys, int threads, int timeout) {
+		this.keys = new HashMap<String,byte[]>(keys);
+		this.threads = Math.max(1,threads);
+		this.timeout = timeout;
+		workers = Executors.newFixedThreadPool(this.threads);
+	}
+
+	/*
+		Accepts connections until the listener is closed, each being served on
+		a thread of its own
+
+		ServerSocket listener - bound socket
+	*/
+	protected void serve(ServerSocket listener) throws IOException {
+		try {
+			while (true) {
+				final Socket socket = listener.accept();
+
+				connections.execute(new Runnable() {
+					public void run() {
+						connection(socket);
+					}
+				});
+			}
+		} finally {
+			connections.shutdown();
+			workers.shutdown();
+		}
+	}
+
+	/*
+		Serves requests on a connection until the client closes it or leaves it
+		idle for the timeout.  Each request is handed to a worker, so waiting
+		for the next one holds no worker.
+	*/
+	private void connection(Socket socket) {
+		final DataInputStream in;
+		final DataOutputStream out;
+		int op;
+
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(timeout);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),chunksize));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),chunksize));
+			while ((op = in.read()) >= 0) {
+				final int request = op;
+				long start = System.nanoTime();
+
+				workers.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						request(request,in,out);
+						out.flush();
+						return null;
+					}
+				}).get();
+				latency.record(System.nanoTime()-start);
+			}
+		} catch (IOException e) {
+			// connection is dropped, other connections carry on
+		} catch (ExecutionException e) {
+			// request failed reading or writing the connection, which is dropped
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/*
+		Serves one request
+
+		int op - request type
+		DataInputStream in - request arguments and data
+		DataOutputStream out - receives reply
+	*/
+	private void request(int op, DataInputStream in, DataOutputStream out) throws IOException {
+		ChunkInput data;
+		ChunkOutput reply;
+		String message = null;  // reason for failure
+		String keyname;
+		byte width;
+		boolean keystream;
+
+		switch (op) {
+		case 'E':
+			keyname = in.readUTF();
+			width = in.readByte();
+			keystream = in.readBoolean();
+			data = new ChunkInput(in);
+			reply = new ChunkOutput(out);
+			try {
+				encoder(keyname,width,keystream).encode(data,reply);
+			} catch (Exception e) {
+				message = (e.getMessage() != null) ? e.getMessage() : e.toString();
+			}
+			break;
+		case 'D':
+			keyname = in.readUTF();
+			data = new ChunkInput(in);
+			reply = new ChunkOutput(out);
+			try {
+				decoder(keyname).decode(data,reply);
+			} catch (Exception e) {
+				message = (e.getMessage() != null) ? e.getMessage() : e.toString();
+			}
+			break;
+		case 'S':
+			out.writeUTF(latency+"; "+Metrics.total);
+			return;
+		default:
+			throw new IOException("Unknown request "+op);
+		}
+
+		// rest of the input is skipped so the next request starts in step
+		data.drain();
+		reply.finish();
+		out.writeBoolean(message == null);
+		out.writeUTF((message == null) ? "" : message);
+	}
+
+	/* looks up a key loaded at start up, names the daemon was not given being refused */
+
+	private byte[] key(String keyname) throws IOException {
+		byte kdat[] = keys.get(keyname);
+
+		if (kdat == null)
+			throw new IOException("Unknown key "+keyname);
+		return kdat;
+	}
+
+	private PuffEncoder encoder(String keyname, byte width, boolean keystream) throws IOException {
+		String name = keyname+"|"+width+"|"+keystream;
+		PuffEncoder encoder = encoders.get(name);
+
+		if (encoder == null) {
+			encoders.putIfAbsent(name,new PuffEncoder(key(keyname),threads,keystream,width));
+			encoder = encoders.get(name);
+		}
+		return encoder;
+	}
+
+	private PuffDecoder decoder(String keyname) throws IOException {
+		PuffDecoder decoder = decoders.get(keyname);
+
+		if (decoder == null) {
+			decoders.putIfAbsent(keyname,new PuffDecoder(key(keyname),threads));
+			decoder = decoders.get(keyname);
+		}
+		return decoder;
+	}
+
+	/* encrypts and decrypts skewed random data so the first requests run compiled code */
+
+	protected static void warm() throws IOException {
+		Random r = new Random();
+		byte plain[] = new byte[warmsize], key[] = new byte[7];
+		int widths[] = {7, 8};
+
+		for (int i=0; i < plain.length; i++)
+			plain[i] = (byte)(r.nextGaussian()*16);
+		r.nextBytes(key);
+		for (int w=0; w < widths.length; w++)
+			for (int i=0; i < warmrounds; i++)
+				new PuffDecoder(key,1).decode(new PuffEncoder(key,1,false,widths[w]).encode(plain));
+	}
+
+	/* Input of a request read from its chunks up to the zero length chunk */
+
+	private static class ChunkInput extends InputStream
+	{
+		private DataInputStream in;
+		private int left;  // bytes of current chunk not yet read
+		private boolean ended;
+
+		private ChunkInput(DataInputStream in) {
+			this.in = in;
+		}
+
+		public int read() throws IOException {
+			byte b[] = new byte[1];
+
+			return (read(b,0,1) < 0) ? -1 : b[0]&0xFF;
+		}
+
+		public int read(byte b[], int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while ((left == 0) && !ended) {
+				left = in.readInt();
+				if (left < 0)
+					throw new IOException("Negative chunk length");
+				ended = (left == 0);
+			}
+			if (ended)
+				return -1;
+			len = in.read(b,off,Math.min(len,left));
+			if (len < 0)
+				throw new EOFException();
+			left -= len;
+			return len;
+		}
+
+		/* skips to the end of the data */
+
+		private void drain() throws IOException {
+			byte skip[] = new byte[chunksize];
+
+			while (read(skip,0,skip.length) >= 0);
+		}
+	}
+
+	/* Output of a request sent as chunks */
+
+	private static class ChunkOutput extends OutputStream
+	{
+		private DataOutputStream out;
+		private byte buf[] = new byte[chunksize];
+		private int count;
+
+		private ChunkOutput(DataOutputStream out) {
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException {
+			if (count == buf.length)
+				send();
+			buf[count++] = (byte)b;
+		}
+
+		public void write(byte b[], int off, int len) throws IOException {
+			int n;
+
+			while (len > 0) {
+				if (count == buf.length)
+					send();
+				n = Math.min(len,buf.length-count);
+				System.arraycopy(b,off,buf,count,n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void send() throws IOException {
+			if (count == 0)
+				return;
+			out.writeInt(count);
+			out.write(buf,0,count);
+			count = 0;
+		}
+
+		/* sends what remains and the zero length chunk */
+
+		private void finish() throws IOException {
+			send();
+			out.writeInt(0);
+		}
+	}
+
+	/*
+		main method
+
+		String[] args - command line arguments
+	*/
+	public static void main(String[] args) throws IOException {
+		int port = defaultport, threads = Runtime.getRuntime().availableProcessors(), timeout = defaulttimeout;
+		Map<String,byte[]> keys = new HashMap<String,byte[]>();
+		ServerSocket listener;
+		final Server server;
+		boolean usage = false;
+
+		for (int i=0; i < args.length; i++) {
+			if (args[i].equals("-port") && (i+1 < args.length))
+				port = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-threads") && (i+1 < args.length))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-timeout") && (i+1 < args.length))
+				timeout = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-key") && (i+2 < args.length)) {
+				// key files are only read here, requests can name nothing else
+				keys.put(args[i+1],Key.getKey(args[i+2]));
+				i += 2;
+			} else
+				usage = true;
+		}
+
+		if (usage || keys.isEmpty()) {
+			System.out.println("Usage:  java Server [-port <port>] [-threads <n>] [-timeout <ms>] -key <name> <keyfile>...");
+			System.out.println("-port sets the localhost port listened on, "+defaultport+" by default");
+			System.out.println("-threads sets how many requests are run at once");
+			System.out.println("-timeout sets how long a connection may sit idle, "+defaulttimeout+" ms by default");
+			System.out.println("-key loads a key file that requests select by name, and may be given more than once");
+			System.out.println("Latency percentiles are printed on shutdown and returned by the S request");
+			return;
+		}
+
+		warm();
+		Metrics.total.clear();
+		server = new Server(keys,threads,timeout);
+		listener = new ServerSocket(port,50,InetAddress.getLoopbackAddress());
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				System.out.println(server.latency);
+				System.out.println(Metrics.total);
+			}
+		});
+		System.out.println("Listening on localhost port "+port);
+		server.serve(listener);
+	}
+}
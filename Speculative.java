@@ -0,0 +1,275 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Parallel decoding of single stream files, which have no block index to
+	say where any code but the first begins.  The codes are cut into chunks
+	at guessed positions that most likely fall mid code.  Huffman codes
+	resynchronize, so a decoder started at a guess soon ends a symbol where
+	a decoder from the true start also ends one.  Each chunk is skimmed from
+	its guess and the ends of its first symbols are recorded.  Each chunk is
+	then skimmed on past the next guess until one of its symbol ends matches
+	a mark recorded there, which is where the next chunk really starts.  A
+	chunk that finds no match is merged into the one before.  The symbols in
+	each chunk then say where its output goes, and every chunk is decoded
+	straight into its own mapping of the output file.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import bitfuns.*;
+
+class Speculative
+{
+	private static final int chunksize = 1<<24;  // least bytes of codes between guesses
+	private static final int maxchunks = 1024;  // most guesses in one file
+	private static final int nmarks = 1<<12;  // symbol ends recorded after each guess
+	private static final int window = 1<<26;  // bytes of input mapped at once
+
+	/* A run of codes decoded from one guessed position */
+
+	private static class Chunk
+	{
+		private long guess;  // guessed position in stream bits
+		private int marks[], counts[];  // symbol ends after the guess
+		private long sync[];  // where skimming from the guess matched the next chunk
+		private long start;  // true position of first code
+		private long base;  // symbols skimmed from guess to true start
+		private long before;  // symbols in stream ahead of chunk
+		private long symbols;  // symbols in chunk
+		private byte lead;  // first byte of output, shared with the chunk before
+
+		private Chunk(long guess) {
+			this.guess = guess;
+		}
+	}
+
+	/* Work done for each chunk given the one after it */
+
+	private interface Task
+	{
+		public void run(Chunk chunk, Chunk next) throws IOException;
+	}
+
+	private FileChannel cipherfile;
+	private long offset;  // position of stream in input file
+	private byte dat[];  // decrypted start of stream
+	private int lens[];
+	private TableDecoder decoder;
+
+	/* Constructor */
+
+	private Speculative(FileChannel cipherfile, long offset, byte dat[], Node tree, byte charwidth) {
+		this.cipherfile = cipherfile;
+		this.offset = offset;
+		this.dat = dat;
+		lens = Canonical.lengths(tree,charwidth);
+		decoder = new TableDecoder(tree,charwidth);
+	}
+
+	/*
+		Reader positioned at a bit of the stream, taking decrypted bytes first.
+		Readers overlap, so their mappings add only time and the input is
+		counted once by the chunks that decode it.
+	*/
+
+	private BitReader reader(long pos) throws IOException {
+		BitReader in;
+
+		if (pos < 8L*dat.length) {
+			in = new BitReader(ByteBuffer.wrap(dat),new Window(cipherfile,FileChannel.MapMode.READ_ONLY,offset+dat.length,cipherfile.size(),window).uncounted());
+			in.skip(pos);
+		} else {
+			in = new BitReader(ByteBuffer.allocate(0),new Window(cipherfile,FileChannel.MapMode.READ_ONLY,offset+(pos>>>3),cipherfile.size(),window).uncounted());
+			in.skip(pos&7);
+		}
+		return in;
+	}
+
+	/* skims from the guess of a chunk recording marks, or on to a match with the next chunk */
+
+	private long[] skim(Chunk chunk, Chunk next) throws IOException {
+		Metrics.Span span = Metrics.begin(Metrics.decode);
+		long sync[];
+
+		if (next == null)
+			sync = decoder.skim(reader(chunk.guess),chunk.guess,lens,chunk.marks,chunk.counts,0,null);
+		else
+			sync = decoder.skim(reader(chunk.guess),chunk.guess,lens,null,null,next.guess,next.marks);
+		span.end(0,0,0,0);  // only the time counts, bytes and symbols being counted as chunks are decoded
+		return sync;
+	}
+
+	/* runs a task for every chunk on the pool and waits for all of them */
+
+	private static void each(ForkJoinPool pool, final List<Chunk> chunks, final Task task) {
+		ArrayList<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+
+		for (int i=0; i < chunks.size(); i++) {
+			final Chunk chunk = chunks.get(i), next = (i+1 < chunks.size()) ? chunks.get(i+1) : null;
+
+			tasks.add(pool.submit(new Callable<Void>() {
+				public Void call() throws IOException {
+					task.run(chunk,next);
+					return null;
+				}
+			}));
+		}
+		for (ForkJoinTask<Void> t : tasks)
+			t.join();
+	}
+
+	/*
+		Decodes a single stream file on a ForkJoin pool
+
+		byte dat[] - decrypted start of stream
+		Node tree - tree described by dat
+		int index - position of first code in bits
+		FileChannel cipherfile - input file
+		long offset - position of stream in input file
+		FileChannel plainfile - output file open for reading and writing
+		Header header - header of input file
+		int threads - chunks decoded at once
+
+		return crc of output file
+	*/
+	protected static int decode(byte dat[], Node tree, int index, FileChannel cipherfile, long offset, final FileChannel plainfile, Header header, int threads) throws IOException {
+		final byte charwidth = header.getCharwidth();
+		final long size = header.getLength(), target = (size*8+charwidth-1)/charwidth;
+		final int lastbits = (int)(size*8-(target-1)*charwidth);
+		final Speculative spec = new Speculative(cipherfile,offset,dat,tree,charwidth);
+		final ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1,threads));
+		final long body = cipherfile.size()-offset;
+		long spacing, sync[];
+		CRC32 crc = new CRC32();
+		Window windows;
+		Metrics.Span span;
+		ByteBuffer buf;
+		Chunk chunk, next;
+		int n;
+
+		// guesses fall on bytes past the tree, the first chunk starting at the true first code
+		spacing = Math.max(chunksize,body/maxchunks);
+		chunks.add(new Chunk(index));
+		for (long pos=dat.length+spacing; pos < body; pos+=spacing)
+			chunks.add(new Chunk(8*pos));
+
+		// records the first symbol ends after every guess
+		each(pool,chunks,new Task() {
+			public void run(Chunk chunk, Chunk next) throws IOException {
+				if (chunk != chunks.get(0)) {
+					chunk.marks = new int[nmarks];
+					chunk.counts = new int[nmarks];
+					spec.skim(chunk,null);
+				}
+			}
+		});
+		// skims each chunk on into the next until they agree
+		each(pool,chunks,new Task() {
+			public void run(Chunk chunk, Chunk next) throws IOException {
+				if (next != null)
+					chunk.sync = spec.skim(chunk,next);
+			}
+		});
+
+		// joins chunks in order, merging any that never agreed into the one before
+		chunk = chunks.get(0);
+		chunk.start = chunk.guess;
+		for (n=0; n+1 < chunks.size(); n++) {
+			sync = chunk.sync;
+			while ((sync == null) && (n+2 < chunks.size())) {
+				chunks.remove(n+1);
+				sync = spec.skim(chunk,chunks.get(n+1));
+			}
+			if ((sync == null) || (chunk.before+sync[1]-chunk.base >= target)) {
+				// the rest of the stream is the last chunk
+				while (chunks.size() > n+1)
+					chunks.remove(n+1);
+				break;
+			}
+			next = chunks.get(n+1);
+			chunk.symbols = sync[1]-chunk.base;
+			next.start = sync[0];
+			next.base = next.counts[(int)sync[2]];
+			next.before = chunk.before+chunk.symbols;
+			chunk = next;
+		}
+		chunk.symbols = target-chunk.before;
+
+		// decodes every chunk into its place in the output
+		plainfile.truncate(0);
+		each(pool,chunks,new Task() {
+			public void run(Chunk chunk, Chunk next) throws IOException {
+				Metrics.Span span = Metrics.begin(Metrics.decode);
+				final long from = chunk.before*charwidth, to = (next == null) ? 8*size : next.before*charwidth;
+				final ByteBuffer lead = ByteBuffer.allocate(1), dest;
+				BitReader in;
+				BitWriter out;
+
+				if (to == from)
+					return;  // empty file
+				dest = plainfile.map(FileChannel.MapMode.READ_WRITE,from>>>3,((to+7)>>>3)-(from>>>3));
+				in = spec.reader(chunk.start);
+
+				// first byte goes to lead, the rest straight to the mapped output
+				out = new BitWriter(lead,new BufferSink() {
+					public ByteBuffer next(ByteBuffer full) {
+						if (full == lead) {
+							dest.position(1);
+							return dest;
+						}
+						return ByteBuffer.allocate(0);  // running past the end fails loudly
+					}
+				});
+				out.write(0,(int)(from&7));
+				spec.decoder.decode(in,out,chunk.symbols,(next == null) ? lastbits : charwidth);
+				out.finish();
+				if ((from&~7L)+out.count() != to)
+					throw new IOException("Chunk at "+chunk.start+" did not match its counted length");
+				chunk.lead = lead.get(0);
+				span.end((((next == null) ? 8*body : next.start)-chunk.start)/8,(to-from)/8,chunk.symbols,1);
+			}
+		});
+		pool.shutdown();
+
+		// merges each held back byte with any bits the chunk before left in it
+		for (Chunk c : chunks) {
+			long from = c.before*charwidth;
+
+			if (8*size > from) {
+				buf = plainfile.map(FileChannel.MapMode.READ_WRITE,from>>>3,1);
+				buf.put(0,(byte)(buf.get(0) | c.lead));
+			}
+		}
+
+		windows = new Window(plainfile,FileChannel.MapMode.READ_ONLY,0,size,Window.defaultsize);
+		span = Metrics.begin(Metrics.crc);
+		while ((buf = windows.next()) != null)
+			crc.update(buf);
+		span.end(size,0,0,0);
+		return (int)crc.getValue();
+	}
+}
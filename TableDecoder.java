@@ -0,0 +1,301 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Table driven Huffman decoder.  The tree rebuilt from the file header is
+	flattened into lookup tables so that each peek of the bitstream resolves
+	one or more whole symbols instead of walking the tree one bit at a time.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.nio.ByteBuffer;
+import bitfuns.*;
+
+class TableDecoder
+{
+	private static final int rootbits = 11;  // bits peeked by first level table
+	private static final int subbits = 8;  // maximum bits peeked by nested tables
+	private static final int maxsyms = 3;  // symbols packed into one table entry
+
+	/*
+		Each table entry is a long laid out as follows
+
+		bits 0-47 - up to three symbols of 16 bits each
+		bits 48-55 - number of bits consumed
+		bits 56-63 - number of symbols resolved
+
+		When no whole symbol fits in the peeked bits the symbol count is zero
+		and bits 0-31 hold the offset of a nested table and bits 32-39 its width
+	*/
+	private long table[];
+	private byte charwidth;
+	private int entrysyms;  // most symbols held by one entry
+
+	/* Constructors */
+
+	protected TableDecoder(Node tree, byte charwidth) {
+		this(tree,charwidth,maxsyms);
+	}
+
+	// interleaved streams take one symbol from each stream in turn so need one per entry
+	protected TableDecoder(Node tree, byte charwidth, int entrysyms) {
+		Metrics.Span span = Metrics.begin(Metrics.tree);
+		int nodes = 2*tree.nodeCount()+1;
+		int child[] = new int[2*nodes], symbol[] = new int[nodes], depth[] = new int[nodes];
+
+		this.charwidth = charwidth;
+		this.entrysyms = Math.min(entrysyms,maxsyms);
+		tree.flatten(child,symbol);
+
+		// child nodes always follow their parent so depth can be found in one backward pass
+		for (int i=nodes-1; i >= 0; i--)
+			if (symbol[i] < 0)
+				depth[i] = 1+Math.max(depth[child[2*i]],depth[child[2*i+1]]);
+
+		buildTables(child,symbol,depth);
+		span.end(0,(long)table.length*8,0,0);
+	}
+
+	/* fill tables starting with root and adding nested tables for long codes */
+
+	private void buildTables(int child[], int symbol[], int depth[]) {
+		int pending[] = new int[8], npending = 0, size, node, width, offset, used, lastused, syms, bit;
+		long packed;
+
+		size = 1<<rootbits;
+		table = new long[size];
+		pending[npending++] = 0;  // root node
+		pending[npending++] = 0;  // root table offset
+		pending[npending++] = rootbits;
+
+		for (int p=0; p < npending; p+=3) {
+			node = pending[p];
+			offset = pending[p+1];
+			width = pending[p+2];
+			for (int v=0; v < (1<<width); v++) {
+				int dex = node;
+
+				packed = 0;
+				syms = 0;
+				used = 0;
+				lastused = 0;
+				for (int b=0; b < width; b++) {
+					bit = (v>>>b)&1;
+					dex = child[2*dex+bit];
+					used++;
+					if (symbol[dex] >= 0) {
+						packed |= (long)symbol[dex] << (16*syms);
+						syms++;
+						lastused = used;
+						dex = 0;  // continues from root with remaining bits
+						if (syms == entrysyms)
+							break;
+					}
+				}
+
+				if (syms > 0) {
+					table[offset+v] = packed | ((long)lastused << 48) | ((long)syms << 56);
+				} else {
+					// code is longer than peek so link to a nested table for the node reached
+					int subwidth = Math.min(subbits,depth[dex]);
+
+					if (npending+3 > pending.length)
+						pending = Arrays.copyOf(pending,pending.length*2);
+					pending[npending++] = dex;
+					pending[npending++] = size;
+					pending[npending++] = subwidth;
+					table[offset+v] = size | ((long)subwidth << 32) | ((long)width << 48);
+					size += 1<<subwidth;
+					if (size > table.length)
+						table = Arrays.copyOf(table,Math.max(size,table.length*2));
+				}
+			}
+		}
+		table = Arrays.copyOf(table,size);
+	}
+
+	/*
+		Decodes file content.  The stream is the decrypted head followed by the rest
+		of the input.  The index points to the first prefix-free code in the head.
+
+		ByteBuffer head - decrypted bytes at start of stream
+		BufferSource input - rest of cipher stream following head
+		OutputSink output - receives plain file
+		int index - position of first code in bits
+		long targetsize - expected size of output file
+		Keystream keys - removed from input following head or null
+
+		return crc of output file
+	*/
+	protected int decode(ByteBuffer head, BufferSource input, OutputSink output, int index, long targetsize, Keystream keys) throws IOException {
+		Metrics.Span span = Metrics.begin(Metrics.decode);
+		BitReader in = new BitReader(head,input,keys);
+		BitWriter out = new BitWriter(output.first(),output);
+		long target;
+		int lastbits;
+
+		target = (targetsize*8+charwidth-1)/charwidth;  // symbols needed to fill output
+		lastbits = (int)(targetsize*8-(target-1)*charwidth);  // bits of last symbol inside output
+		in.skip(index);
+		decode(in,out,target,lastbits);
+
+		out.finish();
+		output.close();
+		span.end(in.count()/8,targetsize,target,0);
+		return output.getCrc();
+	}
+
+	/*
+		Decodes a run of symbols
+
+		BitReader in - positioned at first code
+		BitWriter out - receives symbols
+		long target - number of symbols to decode
+		int lastbits - bits of last symbol kept, charwidth to keep it whole
+	*/
+	protected void decode(BitReader in, BitWriter out, long target, int lastbits) throws IOException {
+		long tab[] = table, acc, entry, symbols = 0;
+		int used, count, offset = 0, width = rootbits;
+
+		while (symbols < target) {
+			acc = in.peek();
+			entry = tab[offset+((int)acc & ((1<<width)-1))];
+			used = (int)(entry >>> 48)&0xFF;
+			in.consume(used);
+			count = (int)(entry >>> 56);
+			if (count == 0) {
+				// code continues in nested table
+				offset = (int)entry;
+				width = (int)(entry >>> 32)&0xFF;
+				continue;
+			}
+			offset = 0;
+			width = rootbits;
+
+			for (int i=0; (i < count) && (symbols < target); i++) {
+				if (++symbols < target)
+					out.write((entry >>> (16*i))&0xFFFF,charwidth);
+				else
+					out.write((entry >>> (16*i)) & ((1L<<lastbits)-1),lastbits);
+			}
+		}
+	}
+
+	/*
+		Decodes symbols dealt round robin across interleaved streams.  Each turn
+		takes one symbol from every stream, and as no stream waits on the code
+		lengths of another their lookups can overlap.  Tables must hold one
+		symbol per entry.
+
+		BitReader in[] - one reader at the first code of each stream
+		BitWriter out - receives symbols in their original order
+		long target - number of symbols to decode
+		int lastbits - bits of last symbol kept, charwidth to keep it whole
+	*/
+	protected void decode(BitReader in[], BitWriter out, long target, int lastbits) throws IOException {
+		long tab[] = table, entry, symbols = 0;
+		int n = in.length, mask = (1<<rootbits)-1;
+		BitReader r;
+
+		while (symbols < target) {
+			for (int s=0; (s < n) && (symbols < target); s++) {
+				r = in[s];
+				entry = tab[(int)r.peek() & mask];
+				while ((entry >>> 56) == 0) {
+					// code continues in nested table
+					r.consume((int)(entry >>> 48)&0xFF);
+					entry = tab[(int)entry + ((int)r.peek() & ((1<<((int)(entry >>> 32)&0xFF))-1))];
+				}
+				r.consume((int)(entry >>> 48)&0xFF);
+				if (++symbols < target)
+					out.write(entry&0xFFFF,charwidth);
+				else
+					out.write(entry & ((1L<<lastbits)-1),lastbits);
+			}
+		}
+	}
+
+	/*
+		Decodes from a position without output to find where symbols end, for
+		decoding from guessed positions.  Codes resynchronize, so a decoder that
+		starts mid code soon ends a symbol where a decoder from the true start
+		also ends one, and from there on both decode the same symbols.
+
+		While marks has room the end of each symbol is recorded.  Past next each
+		symbol end is looked up in the marks recorded from there, and skimming
+		stops at the first that matches.
+
+		BitReader in - reader at start
+		long start - stream position of reader in bits
+		int lens[] - code length of each symbol
+		int marks[] - receives offset from start of each symbol end or null
+		int counts[] - receives symbols decoded at each mark or null
+		long next - position the marks looked up were recorded from
+		int nextmarks[] - marks to look up or null to stop once marks is full
+
+		return position, symbols decoded and index into nextmarks of the match,
+		or null when none of nextmarks matches
+	*/
+	protected long[] skim(BitReader in, long start, int lens[], int marks[], int counts[], long next, int nextmarks[]) throws IOException {
+		long tab[] = table, acc, entry, pos = start, symbols = 0;
+		int used, count, offset = 0, width = rootbits, nmarks = 0, j = 0, sym;
+
+		if (marks != null) {
+			marks[nmarks] = 0;
+			counts[nmarks++] = 0;
+		}
+		while (true) {
+			acc = in.peek();
+			entry = tab[offset+((int)acc & ((1<<width)-1))];
+			used = (int)(entry >>> 48)&0xFF;
+			in.consume(used);
+			count = (int)(entry >>> 56);
+			if (count == 0) {
+				offset = (int)entry;
+				width = (int)(entry >>> 32)&0xFF;
+				continue;
+			}
+			offset = 0;
+			width = rootbits;
+
+			// an entry may hold several symbols so each end is found from its code length
+			for (int i=0; i < count; i++) {
+				sym = (int)(entry >>> (16*i))&0xFFFF;
+				pos += lens[sym];
+				symbols++;
+				if ((marks != null) && (nmarks < marks.length)) {
+					marks[nmarks] = (int)(pos-start);
+					counts[nmarks++] = (int)symbols;
+				} else if (nextmarks == null)
+					return null;
+				if ((nextmarks != null) && (pos >= next)) {
+					while ((j < nextmarks.length) && (next+nextmarks[j] < pos))
+						j++;
+					if (j == nextmarks.length)
+						return null;
+					if (next+nextmarks[j] == pos)
+						return new long[] {pos,symbols,j};
+				}
+			}
+		}
+	}
+}
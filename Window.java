@@ -0,0 +1,92 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Maps a file a window at a time so that files larger than 2 GB can be
+	processed with long offsets.  A single buffer can also be wrapped so that
+	code reading windows works the same on files mapped whole.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import bitfuns.*;
+
+class Window implements BufferSource
+{
+	protected static final int defaultsize = 1<<30;  // bytes mapped at once unless configured
+
+	private FileChannel channel;
+	private FileChannel.MapMode mode;
+	private ByteBuffer single;  // buffer handed out once when not mapping
+	private long offset;  // file position of next window
+	private long end;  // file position where mapping stops
+	private int size;  // bytes per window
+	private boolean counted = true;  // whether mapped bytes are added to the map totals
+
+	/* Constructors */
+
+	protected Window(FileChannel channel, FileChannel.MapMode mode, long offset, long end, int size) {
+		this.channel = channel;
+		this.mode = mode;
+		this.offset = offset;
+		this.end = end;
+		this.size = size;
+	}
+
+	protected Window(ByteBuffer single) {
+		this.single = single;
+	}
+
+	/* leaves the bytes out of the map totals, for windows over bytes another window has counted */
+
+	protected Window uncounted() {
+		counted = false;
+		return this;
+	}
+
+	/*
+		Maps the next window of the file
+
+		return little endian buffer or null once end is reached
+	*/
+	public ByteBuffer next() throws IOException {
+		ByteBuffer buf;
+		Metrics.Span span;
+		int len;
+
+		if (channel == null) {
+			buf = single;
+			single = null;
+			return (buf == null) ? null : buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		if (offset >= end)
+			return null;
+		len = (int)Math.min(size,end-offset);
+		span = Metrics.begin(Metrics.map);
+		buf = channel.map(mode,offset,len).order(ByteOrder.LITTLE_ENDIAN);
+		span.end(counted ? len : 0,0,0,counted ? 1 : 0);
+		offset += len;
+		return buf;
+	}
+}
@@ -0,0 +1,101 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This package is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Calls Puffman for the benchmarks.  This class is in the default package
+	beside Puffman so it can call the package private methods directly, and
+	bench.Core reaches it through the bench.Calls interface.
+ */
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import bench.Calls;
+
+public class CoreCalls implements Calls
+{
+	public Object budget() {
+		return new Budget();
+	}
+
+	/* Huffman tree of 7 bit words built the legacy way with the default code length limit */
+
+	public Object buildTree(BitSet plain) throws IOException {
+		return Puffman.buildTree(plain,Canonical.maxlength);
+	}
+
+	public void genCodes(Object tree, BitSet codes[], byte widths[]) {
+		Node.genCodes((Node)tree,codes,widths);
+	}
+
+	public BitSet codeTable(Object tree, int tablen[], byte charwidth) {
+		return Puffman.codeTable((Node)tree,tablen,charwidth);
+	}
+
+	public int encodeFile(byte kdat[], ByteBuffer plain, FileChannel cipher, BitSet crypt, int cryptpos, BitSet codes[], byte lens[], Object budget) throws IOException {
+		return Puffman.encodeFile(kdat,plain,cipher,crypt,cryptpos,codes,lens,(Budget)budget);
+	}
+
+	public int headSize(byte kdat[], byte charwidth) {
+		return Depuff.headSize(kdat,charwidth);
+	}
+
+	public int tableBits(byte charwidth) {
+		return Node.tableBits(charwidth);
+	}
+
+	/* decrypts dat in place and rebuilds the tree it describes */
+
+	public Object readTree(byte dat[], byte kdat[], byte charwidth) {
+		return Depuff.readTree(dat,kdat,charwidth,null);
+	}
+
+	public int decodeFile(ByteBuffer cipher, ByteBuffer plain, Object tree, int index, BitSet rembits, int remsize, int targetsize, byte charwidth, Object budget) {
+		return Depuff.decodeFile(cipher,plain,(Node)tree,index,rembits,remsize,targetsize,charwidth,(Budget)budget);
+	}
+
+	public BigInteger treeNumber(Object tree) {
+		return ((Node)tree).getTreeNumber();
+	}
+
+	public Object unrankTree(BigInteger treeid, int totalnodes) {
+		Node tree = new Node(new BitSet(),0);
+
+		tree.buildTree(treeid,totalnodes);
+		return tree;
+	}
+
+	public Object encoder(byte key[], int charwidth) {
+		return new PuffEncoder(key,1,false,charwidth);
+	}
+
+	public byte[] encode(Object encoder, byte plain[]) throws IOException {
+		return ((PuffEncoder)encoder).encode(plain);
+	}
+
+	public Object decoder(byte key[]) {
+		return new PuffDecoder(key,1);
+	}
+
+	public byte[] decode(Object decoder, byte cipher[]) throws IOException {
+		return ((PuffDecoder)decoder).decode(cipher);
+	}
+}
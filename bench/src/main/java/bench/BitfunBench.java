@@ -0,0 +1,93 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This package is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Benchmarks of the Bitfun conversions between byte arrays, BitSets and
+	BigIntegers, whole bytes and 7 bit words.
+ */
+
+package bench;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import bitfuns.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BitfunBench
+{
+	@Param({"text", "random", "sparse"})
+	public String corpus;
+
+	@Param({"65536", "1048576"})
+	public int size;
+
+	private byte plain[];
+	private BitSet bits;
+	private BigInteger number;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		plain = Corpus.make(corpus,size);
+		bits = Bitfun.fromByteArray(plain);
+		number = Bitfun.toBigInteger(bits);
+	}
+
+	@Benchmark
+	public BitSet fromByteArray(Throughput t) {
+		t.add(size);
+		return Bitfun.fromByteArray(plain);
+	}
+
+	@Benchmark
+	public BitSet fromByteArray7(Throughput t) {
+		t.add(size);
+		return Bitfun.fromByteArray(plain,7);
+	}
+
+	@Benchmark
+	public byte[] toByteArray(Throughput t) {
+		t.add(size);
+		return Bitfun.toByteArray(bits,new byte[size]);
+	}
+
+	@Benchmark
+	public byte[] toByteArray7(Throughput t) {
+		t.add(size);
+		return Bitfun.toByteArray(bits,7,new byte[(size*8+6)/7]);
+	}
+
+	@Benchmark
+	public BigInteger toBigInteger(Throughput t) {
+		t.add(size);
+		return Bitfun.toBigInteger(bits);
+	}
+
+	@Benchmark
+	public BitSet fromBigInteger(Throughput t) {
+		t.add(size);
+		return Bitfun.fromBigInteger(number);
+	}
+}
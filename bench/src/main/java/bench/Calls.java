@@ -0,0 +1,67 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This package is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	The Puffman methods the benchmarks call.  Puffman lives in the default
+	package, which classes in a named package cannot import, so CoreCalls in
+	the default package implements this by calling each method directly and
+	the compiler checks every call against the core sources.  Trees and
+	budgets are passed as Objects since their classes cannot be named here.
+ */
+
+package bench;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+public interface Calls
+{
+	Object budget();
+
+	Object buildTree(BitSet plain) throws IOException;
+
+	void genCodes(Object tree, BitSet codes[], byte widths[]);
+
+	BitSet codeTable(Object tree, int tablen[], byte charwidth);
+
+	int encodeFile(byte kdat[], ByteBuffer plain, FileChannel cipher, BitSet crypt, int cryptpos, BitSet codes[], byte lens[], Object budget) throws IOException;
+
+	int headSize(byte kdat[], byte charwidth);
+
+	int tableBits(byte charwidth);
+
+	Object readTree(byte dat[], byte kdat[], byte charwidth);
+
+	int decodeFile(ByteBuffer cipher, ByteBuffer plain, Object tree, int index, BitSet rembits, int remsize, int targetsize, byte charwidth, Object budget);
+
+	BigInteger treeNumber(Object tree);
+
+	Object unrankTree(BigInteger treeid, int totalnodes);
+
+	Object encoder(byte key[], int charwidth);
+
+	byte[] encode(Object encoder, byte plain[]) throws IOException;
+
+	Object decoder(byte key[]);
+
+	byte[] decode(Object decoder, byte cipher[]) throws IOException;
+}
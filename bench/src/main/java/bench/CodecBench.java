@@ -0,0 +1,137 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This package is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Benchmarks of whole file encoding and decoding.  The legacy BitSet paths
+	are called directly while the word at a time paths are reached through
+	PuffEncoder and PuffDecoder, all over the same corpus.
+ */
+
+package bench;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import bitfuns.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBench
+{
+	private static final byte charwidth = 7;
+	private static final byte kdat[] = "benchmark key".getBytes();
+
+	@Param({"text", "random", "sparse"})
+	public String corpus;
+
+	@Param({"65536", "1048576"})
+	public int size;
+
+	private byte plain[], legacycipher[], cipher[];
+	private BitSet plainbits, table, codes[], rembits;
+	private byte lens[];
+	private int tablebits, headbytes, index;
+	private Object budget, tree, decodetree, encoder, decoder;
+	private FileChannel cipherfile;
+	private ByteBuffer plainout;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		int tablen[] = new int[2];
+		byte dat[];
+
+		plain = Corpus.make(corpus,size);
+		plainbits = Bitfun.fromByteArray(plain);
+		budget = Core.calls.budget();
+
+		// legacy encoder works from a tree and BitSet codes
+		tree = Core.calls.buildTree(plainbits);
+		codes = new BitSet[1<<charwidth];
+		lens = new byte[1<<charwidth];
+		Core.calls.genCodes(tree,codes,lens);
+		table = Core.calls.codeTable(tree,tablen,charwidth);
+		tablebits = tablen[0]+tablen[1];
+
+		// legacy encoder only writes to a file, which is also read back to decode
+		cipherfile = FileChannel.open(Files.createTempFile("puffbench",".puf"),StandardOpenOption.READ,StandardOpenOption.WRITE,StandardOpenOption.DELETE_ON_CLOSE);
+		legacyEncode(new Throughput());
+		legacycipher = new byte[(int)cipherfile.position()];
+		cipherfile.read(ByteBuffer.wrap(legacycipher),0);
+
+		// legacy decoder starts past the code table which is decrypted ahead of time
+		headbytes = Math.min(Core.calls.headSize(kdat,charwidth),legacycipher.length);
+		dat = Arrays.copyOf(legacycipher,headbytes);
+		decodetree = Core.calls.readTree(dat,kdat,charwidth);
+		rembits = Bitfun.fromByteArray(dat);
+		index = Core.calls.tableBits(charwidth);
+		plainout = ByteBuffer.allocate(size);
+
+		encoder = Core.calls.encoder(kdat,charwidth);
+		decoder = Core.calls.decoder(kdat);
+		cipher = Core.calls.encode(encoder,plain);
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws IOException {
+		cipherfile.close();
+	}
+
+	@Benchmark
+	public int legacyEncode(Throughput t) throws IOException {
+		cipherfile.position(0);
+		t.add(size);
+		return Core.calls.encodeFile(kdat,ByteBuffer.wrap(plain),cipherfile,(BitSet)table.clone(),tablebits,codes,lens,budget);
+	}
+
+	@Benchmark
+	public int legacyDecode(Throughput t) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(legacycipher);
+
+		in.position(headbytes);
+		plainout.clear();
+		t.add(size);
+		return Core.calls.decodeFile(in,plainout,decodetree,index,(BitSet)rembits.clone(),headbytes*8,size,charwidth,budget);
+	}
+
+	@Benchmark
+	public byte[] encode(Throughput t) throws IOException {
+		t.add(size);
+		return Core.calls.encode(encoder,plain);
+	}
+
+	@Benchmark
+	public byte[] decode(Throughput t) throws IOException {
+		t.add(size);
+		return Core.calls.decode(decoder,cipher);
+	}
+
+	@Benchmark
+	public Object buildTree(Throughput t) throws IOException {
+		t.add(size);
+		return Core.calls.buildTree(plainbits);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This package is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Synthetic inputs of different entropy for the benchmarks.  Each is made
+	from a fixed seed so that runs compare the same bytes.
+
+	text - words of skewed frequency with spaces, punctuation and newlines
+	random - uniformly random bytes that do not compress
+	sparse - mostly zero bytes with a few random ones
+ */
+
+package bench;
+
+import java.util.*;
+
+final class Corpus
+{
+	private static final long seed = 0x5EED;
+	private static final int words = 4096;  // vocabulary of text corpus
+
+	private Corpus() {
+	}
+
+	static byte[] make(String kind, int size) {
+		Random r = new Random(seed);
+		byte dat[] = new byte[size];
+
+		if (kind.equals("text"))
+			text(r,dat);
+		else if (kind.equals("random"))
+			r.nextBytes(dat);
+		else if (kind.equals("sparse")) {
+			for (int i=0; i < size; i++)
+				if (r.nextInt(64) == 0)
+					dat[i] = (byte)r.nextInt(256);
+		} else
+			throw new IllegalArgumentException("Unknown corpus "+kind);
+		return dat;
+	}
+
+	/* fills with words drawn so that low numbered words are the most common */
+
+	private static void text(Random r, byte dat[]) {
+		String vocab[] = new String[words], punct = ",.;:!?";
+		char word[];
+		int pos = 0, line = 0;
+
+		for (int w=0; w < words; w++) {
+			word = new char[1+r.nextInt(3)+r.nextInt(6)];
+			for (int i=0; i < word.length; i++)
+				word[i] = (char)('a'+Math.min(25,(int)(r.nextDouble()*r.nextDouble()*26)));
+			vocab[w] = new String(word);
+		}
+
+		while (pos < dat.length) {
+			String w = vocab[(int)(words*Math.pow(r.nextDouble(),3))];
+
+			for (int i=0; (i < w.length()) && (pos < dat.length); i++)
+				dat[pos++] = (byte)w.charAt(i);
+			if ((pos < dat.length) && (r.nextInt(12) == 0))
+				dat[pos++] = (byte)punct.charAt(r.nextInt(punct.length()));
+			line += w.length()+1;
+			if (pos < dat.length) {
+				dat[pos++] = (byte)((line > 72) ? '\n' : ' ');
+				if (line > 72)
+					line = 0;
+			}
+		}
+	}
+}
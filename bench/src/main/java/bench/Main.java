@@ -0,0 +1,40 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This package is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Runs the benchmarks with the JMH command line.  The GC profiler is added
+	when no profiler is named so that allocation rate is always reported.
+ */
+
+package bench;
+
+import java.util.*;
+
+public class Main
+{
+	public static void main(String args[]) throws Exception {
+		List<String> opts = new ArrayList<String>(Arrays.asList(args));
+
+		if (!opts.contains("-prof")) {
+			opts.add(0,"gc");
+			opts.add(0,"-prof");
+		}
+		org.openjdk.jmh.Main.main(opts.toArray(new String[0]));
+	}
+}
@@ -0,0 +1,43 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This package is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Counts the megabytes a benchmark passes through.  JMH reports the count
+	per second beside each throughput result, giving MB/s directly.
+ */
+
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+@AuxCounters(AuxCounters.Type.EVENTS)
+@State(Scope.Thread)
+public class Throughput
+{
+	public double megabytes;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		megabytes = 0;
+	}
+
+	void add(long bytes) {
+		megabytes += bytes/(double)(1<<20);
+	}
+}
@@ -0,0 +1,65 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This package is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Benchmarks of numbering a tree and rebuilding it from its number, as the
+	code table is written and read.  The tree comes from a megabyte of the
+	corpus so its shape follows the corpus entropy.
+ */
+
+package bench;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import bitfuns.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TreeBench
+{
+	private static final int totalnodes = (1<<7)-1;
+
+	@Param({"text", "random", "sparse"})
+	public String corpus;
+
+	private Object tree;
+	private BigInteger treeid;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		tree = Core.calls.buildTree(Bitfun.fromByteArray(Corpus.make(corpus,1<<20)));
+		treeid = Core.calls.treeNumber(tree);
+	}
+
+	@Benchmark
+	public BigInteger getTreeNumber() {
+		return Core.calls.treeNumber(tree);
+	}
+
+	@Benchmark
+	public Object buildTree() {
+		return Core.calls.unrankTree(treeid,totalnodes);
+	}
+}
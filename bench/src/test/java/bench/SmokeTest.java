@@ -0,0 +1,61 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This package is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Runs the setup and every benchmark once on the smallest corpus, so a
+	Puffman method that Core can no longer reach fails the build rather
+	than the benchmark run.
+ */
+
+package bench;
+
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SmokeTest
+{
+	@Test
+	public void codec() throws IOException {
+		CodecBench b = new CodecBench();
+
+		b.corpus = "text";
+		b.size = 65536;
+		b.setup();
+		try {
+			b.legacyEncode(new Throughput());
+			b.legacyDecode(new Throughput());
+			assertEquals(b.size,b.decode(new Throughput()).length);
+			b.encode(new Throughput());
+			assertNotNull(b.buildTree(new Throughput()));
+		} finally {
+			b.teardown();
+		}
+	}
+
+	@Test
+	public void tree() throws IOException {
+		TreeBench b = new TreeBench();
+
+		b.corpus = "text";
+		b.setup();
+		assertNotNull(b.getTreeNumber());
+		assertNotNull(b.buildTree());
+	}
+}
@@ -0,0 +1,123 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This package is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Reads a little endian bitstream a word at a time from a sequence of buffers
+ */
+
+package bitfuns;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class BitReader {
+	private BufferSource source;
+	private ByteBuffer in;  // buffer being read or null at end of stream
+	private int pos, limit;  // position and limit within in
+	private long acc;  // bits read ahead with the next bit in the lowest position
+	private int nbits;  // number of valid bits in acc
+	private long before;  // bytes taken from buffers before in
+	private int start;  // position in was first read from
+	private Keystream keys;  // removed from bytes as they are read or null
+	private Keystream pending;  // keystream taking effect with the first buffer from source
+
+	public BitReader(ByteBuffer first, BufferSource source) {
+		this.source = source;
+		in = first.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		pos = in.position();
+		start = pos;
+		limit = in.limit();
+	}
+
+	// removes keystream from buffers of the source, the first buffer being already plain
+	public BitReader(ByteBuffer first, BufferSource source, Keystream keys) {
+		this(first,source);
+		pending = keys;
+	}
+
+	// returns at least 32 bits ahead, past the end of stream bits are zero
+	public long peek() throws IOException {
+		if (nbits < 32)
+			refill();
+		return acc;
+	}
+
+	// drops bits already peeked
+	public void consume(int n) {
+		acc >>>= n;
+		nbits -= n;
+	}
+
+	// reads up to 32 bits
+	public long read(int n) throws IOException {
+		long bits = peek() & ((1L<<n)-1);
+
+		consume(n);
+		return bits;
+	}
+
+	// skips any number of bits
+	public void skip(long n) throws IOException {
+		for (; n > 32; n -= 32)
+			read(32);
+		read((int)n);
+	}
+
+	// total bits taken from buffers, including those read ahead
+	public long count() {
+		return (before+((in == null) ? 0 : pos-start))*8;
+	}
+
+	// fills acc from a whole word where possible otherwise a byte at a time
+	private void refill() throws IOException {
+		int k;
+
+		if (pos+8 <= limit) {
+			k = (63-nbits)>>>3;
+			if (keys != null) {
+				acc |= (in.getLong(pos) ^ keys.peek()) << nbits;
+				keys.advance(k);
+			} else
+				acc |= in.getLong(pos) << nbits;
+			pos += k;
+			nbits += k*8;
+			return;
+		}
+
+		for (; nbits <= 56; nbits += 8) {
+			while ((pos >= limit) && (in != null)) {
+				before += pos-start;
+				in = source.next();
+				keys = pending;
+				if (in != null) {
+					in = in.order(ByteOrder.LITTLE_ENDIAN);
+					pos = in.position();
+					start = pos;
+					limit = in.limit();
+				}
+			}
+			if ((in != null) && (keys != null)) {
+				acc |= (long)((in.get(pos++) ^ (int)keys.peek())&0xFF) << nbits;
+				keys.advance(1);
+			} else if (in != null)
+				acc |= (long)(in.get(pos++)&0xFF) << nbits;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This package is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Writes a little endian bitstream a word at a time into reusable buffers
+ */
+
+package bitfuns;
+
+import java.io.*;
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class BitWriter {
+	private BufferSink sink;
+	private ByteBuffer out;  // buffer being filled
+	private long acc;  // bits not yet stored with the earliest in the lowest position
+	private int nbits;  // number of bits in acc, always under 32 between writes
+	private long count;  // total bits written
+	private Keystream keys;  // applied to every byte stored or null
+
+	public BitWriter(ByteBuffer first, BufferSink sink) {
+		this.sink = sink;
+		out = first.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	// applies keystream to each word as it is stored
+	public BitWriter(ByteBuffer first, BufferSink sink, Keystream keys) {
+		this(first,sink);
+		this.keys = keys;
+	}
+
+	// writes up to 32 bits, bits above n must be clear
+	public void write(long bits, int n) throws IOException {
+		acc |= bits << nbits;
+		nbits += n;
+		count += n;
+		if (nbits >= 32) {
+			if (out.remaining() >= 4) {
+				if (keys != null) {
+					out.putInt((int)(acc ^ keys.peek()));
+					keys.advance(4);
+				} else
+					out.putInt((int)acc);
+				acc >>>= 32;
+				nbits -= 32;
+			} else {
+				for (; nbits >= 8; nbits -= 8) {
+					put((byte)acc);
+					acc >>>= 8;
+				}
+			}
+		}
+	}
+
+	// writes up to 64 bits, bits above n must be clear
+	public void writeLong(long bits, int n) throws IOException {
+		if (n > 32) {
+			write(bits & 0xFFFFFFFFL,32);
+			bits >>>= 32;
+			n -= 32;
+		}
+		write(bits,n);
+	}
+
+	// writes first n bits of a BitSet
+	public void write(BitSet bits, int n) throws IOException {
+		long words[] = bits.toLongArray(), word;
+
+		for (int i=0; i < n; i+=32) {
+			word = (i>>>6 < words.length) ? words[i>>>6] >>> (i&63) : 0;
+			write(word & ((1L<<Math.min(32,n-i))-1),Math.min(32,n-i));
+		}
+	}
+
+	// total bits written
+	public long count() {
+		return count;
+	}
+
+	// stores outstanding bits padded to a byte and hands the last buffer to the sink
+	public void finish() throws IOException {
+		for (; nbits > 0; nbits -= 8) {
+			put((byte)acc);
+			acc >>>= 8;
+		}
+		nbits = 0;
+		out.flip();
+		sink.next(out);
+	}
+
+	private void put(byte b) throws IOException {
+		if (!out.hasRemaining()) {
+			out.flip();
+			out = sink.next(out).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		if (keys != null) {
+			b ^= (byte)keys.peek();
+			keys.advance(1);
+		}
+		out.put(b);
+	}
+}
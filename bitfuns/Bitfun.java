@@ -32,31 +32,48 @@ public class Bitfun {
 	public static BitSet combinebits(BitSet bitdat[], int lens)
 	// all bits the same size
 	 {
-		int index = 0;
-		BitSet bitstream = new BitSet();
-
-		for (int i=0; i < bitdat.length; i++)
-			for (int j=0; j < lens; j++) {
-				if (bitdat[i].get(j)) bitstream.set(index);
-				index++;
-			}
+		int intLens[] = new int[bitdat.length];
 
-		return bitstream;
+		Arrays.fill(intLens,lens);
+		return combinebits(bitdat, intLens);
 	}
 
 	public static BitSet combinebits(BitSet bitdat[], int lens[]) 
 	// passes array of lengths
 	{
+		long words[];
 		int index = 0;
-		BitSet bitstream = new BitSet();
 
 		for (int i=0; i < bitdat.length; i++)
-			for (int j=0; j < lens[i]; j++) {
-				if (bitdat[i].get(j)) bitstream.set(index);
-				index++;
-			}
+			index += lens[i];
+		words = new long[(index+63)/64];
 
-		return bitstream;
+		index = 0;
+		for (int i=0; i < bitdat.length; i++) {
+			copybits(bitdat[i].toLongArray(), lens[i], words, index);
+			index += lens[i];
+		}
+
+		return BitSet.valueOf(words);
+	}
+
+	// ORs first len bits of src into dst starting at bit offset a word at a time
+	private static void copybits(long src[], int len, long dst[], int offset) {
+		long word;
+		int at, n;
+
+		for (int i=0; i < len; i+=64) {
+			if (i>>>6 >= src.length)
+				break;
+			n = Math.min(64,len-i);
+			word = src[i>>>6];
+			if (n < 64)
+				word &= (1L<<n)-1;
+			at = offset+i;
+			dst[at>>>6] |= word << (at&63);
+			if (((at&63) != 0) && ((at&63)+n > 64))
+				dst[(at>>>6)+1] |= word >>> (64-(at&63));
+		}
 	}
 
 	public static BitSet combinebits(BitSet bitdat[], byte lens[])
@@ -97,32 +114,48 @@ public class Bitfun {
 	}
 
 	public static byte[] toByteArray(BitSet bits, int charwidth, byte[] bytes) {
-	    for (int i=0; i < bytes.length*8; i++) {
-		if (bits.get(i)) {
-		    bytes[i/charwidth] |= 1<<(i%charwidth);
-		}
+	    byte[] whole;
+
+	    if (charwidth == 8) {
+		// whole bytes come straight from the words of the BitSet
+		whole = bits.toByteArray();
+		for (int i=0; i < Math.min(whole.length,bytes.length); i++)
+		    bytes[i] |= whole[i];
+		return bytes;
 	    }
+
+	    for (int i=bits.nextSetBit(0); (i >= 0) && (i < bytes.length*8); i=bits.nextSetBit(i+1))
+		bytes[i/charwidth] |= 1<<(i%charwidth);
 	    return bytes;
 	}
 
 	public static BigInteger toBigInteger(BitSet bits) {
-		BigInteger number = BigInteger.ZERO;
+		byte little[] = bits.toByteArray(), big[] = new byte[little.length];
 
-		for (int i=0; i < bits.size(); i++)
-			if (bits.get(i))
-				number = number.setBit(i);
+		// BigInteger takes magnitude most significant byte first
+		for (int i=0; i < little.length; i++)
+			big[little.length-1-i] = little[i];
 
-		return number;
+		return new BigInteger(1,big);
 	}
 
 	public static BitSet fromBigInteger(BigInteger number) {
+		byte big[], little[];
 		BitSet bits = new BitSet();
 
-		for (int i=0; i < number.bitLength(); i++)
-			if (number.testBit(i))
-				bits.set(i);
+		if (number.signum() < 0) {
+			for (int i=0; i < number.bitLength(); i++)
+				if (number.testBit(i))
+					bits.set(i);
+			return bits;
+		}
 
-		return bits;
+		big = number.toByteArray();
+		little = new byte[big.length];
+		for (int i=0; i < big.length; i++)
+			little[big.length-1-i] = big[i];
+
+		return BitSet.valueOf(little);
 	}
 
 	// little endian
@@ -131,10 +164,14 @@ public class Bitfun {
 	}
 
 	public static BitSet fromByteArray(byte[] bytes, int charwidth) {
-	    BitSet bits = new BitSet();
+	    BitSet bits;
+
+	    if (charwidth == 8)
+		return BitSet.valueOf(bytes);
+
+	    bits = new BitSet();
 	    for (int i=(bytes.length)*charwidth-1; i >= 0; i--) {
 		if ((bytes[i/charwidth]&(1<<(i%charwidth))) > 0) {
-		    //System.out.println("setting bit "+i);
 		    bits.set(i);
 		}
 	    }
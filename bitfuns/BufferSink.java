@@ -0,0 +1,34 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This package is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Takes filled buffers from a BitWriter and supplies empty ones
+ */
+
+package bitfuns;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+public interface BufferSink {
+
+	// takes a filled buffer flipped for reading and returns the next buffer to fill
+	// or null if the stream has ended
+	public ByteBuffer next(ByteBuffer full) throws IOException;
+}
@@ -0,0 +1,33 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This package is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Supplies successive buffers of a bitstream to a BitReader
+ */
+
+package bitfuns;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+public interface BufferSource {
+
+	// returns next buffer positioned at its first byte or null at end of stream
+	public ByteBuffer next() throws IOException;
+}
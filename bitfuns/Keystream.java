@@ -0,0 +1,72 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This package is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	This program is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Keystream derived from a key for obfuscating a whole stream.  Words come
+	from a SplitMix64 counter seeded with an FNV-1a hash of the key and are
+	read as little endian bytes so that a reader or writer can take them a
+	word or a byte at a time while it packs the stream.
+ */
+
+package bitfuns;
+
+public class Keystream {
+	private long state;  // counter of the generator
+	private long lo, hi;  // current and next word of keystream
+	private int offset;  // bytes of lo already used
+
+	public Keystream(byte key[]) {
+		state = 0xCBF29CE484222325L;
+		for (int i=0; i < key.length; i++)
+			state = (state ^ (key[i]&0xFF)) * 0x100000001B3L;
+		lo = generate();
+		hi = generate();
+	}
+
+	// returns the next 8 bytes of keystream without using them
+	public long peek() {
+		return (offset == 0) ? lo : (lo >>> (8*offset)) | (hi << (64-8*offset));
+	}
+
+	// uses up to 8 bytes of keystream
+	public void advance(int n) {
+		offset += n;
+		if (offset >= 8) {
+			lo = hi;
+			hi = generate();
+			offset -= 8;
+		}
+	}
+
+	// applies keystream to part of an array
+	public void apply(byte dat[], int off, int len) {
+		for (int i=off; i < off+len; i++) {
+			dat[i] ^= (byte)peek();
+			advance(1);
+		}
+	}
+
+	private long generate() {
+		long z = (state += 0x9E3779B97F4A7C15L);
+
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
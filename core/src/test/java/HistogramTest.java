@@ -0,0 +1,81 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Checks symbol counts against a plain loop over the input, including
+	tails shorter than a whole group of symbols.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HistogramTest
+{
+	/*
+		Counts symbols one at a time, the last padded with zeros
+
+		byte dat[] - input
+		byte charwidth - symbol width in bits
+
+		return frequency of each symbol
+	*/
+	private static long[] plainCount(byte dat[], byte charwidth) {
+		long frequency[] = new long[1<<charwidth], bit, sym;
+
+		for (bit = 0; bit < (long)dat.length*8; bit += charwidth) {
+			sym = 0;
+			for (int i=0; i < charwidth; i++)
+				if ((bit+i < (long)dat.length*8) && ((dat[(int)((bit+i)>>>3)] >>> ((bit+i)&7) & 1) != 0))
+					sym |= 1L << i;
+			frequency[(int)sym]++;
+		}
+		return frequency;
+	}
+
+	private static void check(byte charwidth) {
+		Random rand = new Random(charwidth);
+
+		// every tail length from none to more than a whole group
+		for (int size=0; size < 64; size++) {
+			byte dat[] = new byte[1000+size];
+
+			rand.nextBytes(dat);
+			assertArrayEquals("size "+dat.length,plainCount(dat,charwidth),Histogram.count(ByteBuffer.wrap(dat),charwidth,new long[1<<charwidth]));
+		}
+	}
+
+	@Test
+	public void counts7() {
+		check((byte)7);
+	}
+
+	@Test
+	public void counts8() {
+		check((byte)8);
+	}
+
+	@Test
+	public void counts16() {
+		check((byte)16);
+	}
+}
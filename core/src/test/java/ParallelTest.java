@@ -0,0 +1,98 @@
+/*
+	Copyright (c) 2012 by Derek Seabrooke
+
+	This file is part of Puffman.
+
+	Puffman is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Puffman is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Puffman.  If not, see <http://www.gnu.org/licenses/>.
+
+	----
+
+	Author:  Derek Seabrooke <dseabroo@electricgenesis.com>
+
+	Round trips a file large enough to be coded in parallel slices.  Slices
+	are used whenever more than one thread is asked for, so these run the
+	parallel path on a machine with a single processor too.
+ */
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ParallelTest
+{
+	/*
+		Encrypts a random file of the given size in slices and decrypts it again
+
+		int size - bytes of input
+		String width - symbol width in bits
+		boolean trained - whether codes come from a model trained on the input rather than a count
+	*/
+	private static void roundTrip(int size, String width, boolean trained) throws IOException {
+		File dir = Files.createTempDirectory("puffman").toFile();
+		File plain = new File(dir,"plain"), cipher = new File(dir,"plain.puf"), key = new File(dir,"key"), model = new File(dir,"model");
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream(size);
+		byte dat[] = new byte[size], kdat[] = new byte[64];
+		Random rand = new Random(size);
+
+		// a narrow spread of values keeps the codes short of the symbol width
+		for (int i=0; i < size; i++)
+			dat[i] = (byte)('a'+rand.nextInt(4));
+		rand.nextBytes(kdat);
+		try {
+			Files.write(plain.toPath(),dat);
+			Files.write(key.toPath(),kdat);
+			if (trained) {
+				Model.train(Arrays.asList(plain.getPath()),Byte.parseByte(width),Canonical.maxlength).save(model.getPath());
+				Puffman.main(new String[] {"-width",width,"-model",model.getPath(),"-threads","4",plain.getPath(),key.getPath()});
+			} else
+				Puffman.main(new String[] {"-width",width,"-threads","4",plain.getPath(),key.getPath()});
+			assertTrue("no output",cipher.exists());
+
+			new PuffDecoder(kdat,1).decode(new ByteArrayInputStream(Files.readAllBytes(cipher.toPath())),decoded);
+			assertArrayEquals(dat,decoded.toByteArray());
+		} finally {
+			plain.delete();
+			cipher.delete();
+			key.delete();
+			model.delete();
+			dir.delete();
+		}
+	}
+
+	// a tail of five bytes leaves half a 16 bit symbol after the last full word
+	@Test
+	public void roundTrip16() throws IOException {
+		roundTrip((int)Histogram.slice((byte)16)+5,"16",false);
+	}
+
+	@Test
+	public void roundTrip8() throws IOException {
+		roundTrip((int)Histogram.slice((byte)8)+5,"8",false);
+	}
+
+	// slices coded without a count are appended at odd bits, a 7 bit model rarely ending one on a byte
+	@Test
+	public void roundTripModel7() throws IOException {
+		roundTrip(2*(int)Histogram.slice((byte)7)+5,"7",true);
+	}
+
+	@Test
+	public void roundTripModel16() throws IOException {
+		roundTrip((int)Histogram.slice((byte)16)+5,"16",true);
+	}
+}